@@ -0,0 +1,250 @@
+package lsm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/*
+    YCSB style JMH benchmark of MiniLsm: each trial preloads records into a fresh store, then every benchmark thread
+    runs operations of one of the core workloads against it. Throughput mode gives operations per microsecond,
+    sample mode the latency distribution with its p50, p99 and p999; -prof gc adds the allocation rate. Settings are
+    the @Param fields below, e.g.
+
+        mvn -Pbenchmark package -DskipTests
+        java -jar target/benchmarks.jar YcsbBenchmark -p workload=A,B -p valueSize=1000 -p records=1000000 -t 8 -prof gc
+
+    A  50% read, 50% update                  B  95% read, 5% update                 C  100% read
+    D  95% read, 5% insert, latest first     E  95% scan (1-100 records), 5% insert F  50% read, 50% read-modify-write
+
+    Keys are "user" followed by a hash of the record number, as in YCSB, so popular records are spread over the key
+    space instead of clustered. Each trial's data dir is deleted at its end, after the store's write and read
+    amplification are printed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+public class YcsbBenchmark {
+
+    private static final int MAX_SCAN_LENGTH = 100;
+
+    public enum Operation {
+        READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE
+    }
+
+    // share of each operation, in Operation order
+    public enum Workload {
+        A(0.5, 0.5, 0, 0, 0),
+        B(0.95, 0.05, 0, 0, 0),
+        C(1, 0, 0, 0, 0),
+        D(0.95, 0, 0.05, 0, 0),
+        E(0, 0, 0.05, 0.95, 0),
+        F(0.5, 0, 0, 0, 0.5);
+
+        private final double[] cumulative = new double[Operation.values().length];
+
+        Workload(final double... shares) {
+            double sum = 0;
+            for (int i = 0; i < shares.length; i++) {
+                sum += shares[i];
+                cumulative[i] = sum;
+            }
+        }
+
+        Operation next(final double random) {
+            for (int i = 0; i < cumulative.length; i++) {
+                if (random < cumulative[i]) return Operation.values()[i];
+            }
+            return Operation.values()[cumulative.length - 1];
+        }
+    }
+
+    @Param({"A", "B", "C", "D", "E", "F"})
+    public Workload workload;
+
+    @Param("100000")
+    public long records;
+
+    @Param("100")
+    public int valueSize;
+
+    @Param("zipfian") //zipfian or uniform, D always reads the latest records
+    public String distribution;
+
+    @Param("put") //put, or ingest to bulk load the records
+    public String load;
+
+    @Param("OS_BUFFERED")
+    public String durability;
+
+    private Path dataDir;
+    private MiniLsm lsm;
+    private ZipfianGenerator zipfianGenerator;
+    private final AtomicLong insertedRecords = new AtomicLong(); //records readable so far, inserts append after them
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("ycsb-");
+        lsm = new MiniLsm(dataDir, new LsmOptions().durability(WriteAheadLog.Durability.valueOf(durability)));
+        zipfianGenerator = new ZipfianGenerator(records);
+        if (load.equalsIgnoreCase("ingest")) {
+            lsm.ingest(new Iterator<>() {
+                private long next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < records;
+                }
+
+                @Override
+                public Map.Entry<byte[], byte[]> next() {
+                    return Map.entry(key(next++), value());
+                }
+            });
+        } else {
+            for (long i = 0; i < records; i++) {
+                lsm.put(key(i), value());
+            }
+        }
+        insertedRecords.set(records);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try {
+            final MetricsSnapshot metrics = lsm.metrics();
+            System.out.printf("%nWrite amplification %.2f, read amplification %.2f SSTs per get, %d SSTs of %d bytes%n",
+                    metrics.writeAmplification(), metrics.readAmplification(), metrics.sstCount(), metrics.sstBytes());
+            lsm.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void operation(final Blackhole blackhole) throws IOException {
+        switch (workload.next(ThreadLocalRandom.current().nextDouble())) {
+            case READ -> blackhole.consume(lsm.get(key(nextRecord())));
+            case UPDATE -> lsm.put(key(nextRecord()), value());
+            case INSERT -> {
+                final long record = insertedRecords.get();
+                lsm.put(key(record), value());
+                insertedRecords.accumulateAndGet(record + 1, Math::max); //readable from now on
+            }
+            case SCAN -> {
+                final int length = ThreadLocalRandom.current().nextInt(1, MAX_SCAN_LENGTH + 1);
+                try (BinaryScanIterator scan = lsm.scan(key(nextRecord()), null)) {
+                    for (int i = 0; i < length && scan.hasNext(); i++) {
+                        blackhole.consume(scan.next().getValue());
+                    }
+                }
+            }
+            case READ_MODIFY_WRITE -> {
+                final byte[] key = key(nextRecord());
+                blackhole.consume(lsm.get(key));
+                lsm.put(key, value());
+            }
+        }
+    }
+
+    // record number of the next key to read, update or scan from
+    private long nextRecord() {
+        final long available = insertedRecords.get();
+        if (workload == Workload.D) {
+            return Math.max(0, available - 1 - zipfianGenerator.next()); //the newest records are the popular ones
+        }
+        if (!distribution.equalsIgnoreCase("zipfian")) {
+            return ThreadLocalRandom.current().nextLong(available);
+        }
+        return fnv64(zipfianGenerator.next()) % records; //scrambled, popular records spread over the key space
+    }
+
+    private static byte[] key(final long record) {
+        return ("user" + Long.toUnsignedString(fnv64(record))).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] value() {
+        final byte[] value = new byte[valueSize];
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < valueSize; i++) {
+            value[i] = (byte) (' ' + random.nextInt(95)); //printable, compressible like YCSB's field data
+        }
+        return value;
+    }
+
+    // FNV-1a 64 over the bytes of value, positive
+    private static long fnv64(long value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xFF;
+            hash *= 0x100000001B3L;
+            value >>>= 8;
+        }
+        return hash & Long.MAX_VALUE;
+    }
+
+    /*
+        Zipfian ranks over [0, items) with the YCSB constant 0.99, after Gray et al., "Quickly generating billion
+        record synthetic databases": rank 0 is the most popular. zeta(n) is summed once up front, O(items).
+     */
+    static final class ZipfianGenerator {
+
+        private static final double THETA = 0.99;
+
+        private final long items;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        ZipfianGenerator(final long items) {
+            this.items = items;
+            double zeta = 0;
+            for (long i = 1; i <= items; i++) {
+                zeta += 1 / Math.pow(i, THETA);
+            }
+            final double zeta2 = 1 + 1 / Math.pow(2, THETA);
+            this.zetaN = zeta;
+            this.alpha = 1 / (1 - THETA);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta2 / zetaN);
+        }
+
+        long next() {
+            final double u = ThreadLocalRandom.current().nextDouble();
+            final double uz = u * zetaN;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, THETA)) return Math.min(1, items - 1);
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
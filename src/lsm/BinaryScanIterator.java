@@ -0,0 +1,102 @@
+package lsm;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+    Streaming view over [startKey, endKey) across memtables and SSTs as of one sequence number: each key shows its
+    newest version at or below that sequence, and keys where that version is a tombstone or has expired are skipped.
+    SST blocks are read lazily and sequentially as the caller advances. Pinned SSTs are released on close() or once the
+    scan is exhausted.
+
+    Keys ascend in MiniLsm.KEY_ORDER. Returned arrays can be shared with the memtable and must not be modified.
+ */
+public class BinaryScanIterator implements Iterator<Map.Entry<byte[], byte[]>>, Closeable {
+
+    private final MergingIterator merged;
+    private final List<SsTable> pinnedTables;
+    private final long sequence;
+    private final long nowMillis; //expiry is judged once, when the scan starts
+    private Map.Entry<byte[], byte[]> head;
+    private byte[] lastKey;
+    private boolean closed;
+
+    BinaryScanIterator(
+            final List<? extends Iterator<Map.Entry<byte[], Cell>>> newestFirst,
+            final List<SsTable> pinnedTables,
+            final long sequence) {
+        this.merged = new MergingIterator(newestFirst);
+        this.pinnedTables = pinnedTables;
+        this.sequence = sequence;
+        this.nowMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) return false;
+        while (head == null && merged.hasNext()) {
+            final Map.Entry<byte[], Cell> entry = merged.next();
+            //newer than the view, or an older version of a key already decided
+            if (entry.getValue().sequence() > sequence || Arrays.equals(entry.getKey(), lastKey)) continue;
+            lastKey = entry.getKey();
+            if (entry.getValue().isLive(nowMillis)) {
+                head = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().value());
+            }
+        }
+        if (head != null) return true;
+        close();
+        return false;
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final Map.Entry<byte[], byte[]> entry = head;
+        head = null;
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        pinnedTables.forEach(SsTable::release);
+    }
+
+    // clips a sorted source to [startKey, endKey), a null endKey means unbounded
+    static <V> Iterator<Map.Entry<byte[], V>> bounded(
+            final Iterator<Map.Entry<byte[], V>> source,
+            final byte[] startKey,
+            final byte[] endKey) {
+        return new Iterator<>() {
+            private Map.Entry<byte[], V> head = advance();
+
+            private Map.Entry<byte[], V> advance() {
+                while (source.hasNext()) {
+                    final Map.Entry<byte[], V> entry = source.next();
+                    if (MiniLsm.KEY_ORDER.compare(entry.getKey(), startKey) < 0) continue;
+                    return endKey == null || MiniLsm.KEY_ORDER.compare(entry.getKey(), endKey) < 0 ? entry : null;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return head != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], V> next() {
+                if (head == null) throw new NoSuchElementException();
+                final Map.Entry<byte[], V> entry = head;
+                head = advance();
+                return entry;
+            }
+        };
+    }
+}
@@ -0,0 +1,220 @@
+package lsm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/*
+    One decoded index block of an SST: a private copy of its records with whole keys, on heap or off heap, plus the
+    start offset of every record so lookups binary search instead of walking the block. Format 2 blocks are checked,
+    decompressed and have their shared key prefixes expanded here, once per read from disk. A single lookup that
+    does not cache the block skips the copy, see get(ByteBuffer, ...).
+ */
+final class Block {
+
+    private static final int OVERHEAD_BYTES = 64; //object headers and cache bookkeeping, roughly
+
+    private static final Map<Byte, BlockCodec> CODECS = new ConcurrentHashMap<>(Map.of(BlockCodec.DEFLATE.id(), BlockCodec.DEFLATE));
+
+    private final ByteBuffer data;
+    private final int[] recordOffsets;
+
+    private Block(final ByteBuffer data, final int[] recordOffsets) {
+        this.data = data;
+        this.recordOffsets = recordOffsets;
+    }
+
+    // registering the same codec again, as every store opened with it does, is a no-op
+    static void registerCodec(final BlockCodec codec) {
+        final BlockCodec existing = CODECS.putIfAbsent(codec.id(), codec);
+        if (existing != null && existing.getClass() != codec.getClass()) {
+            throw new IllegalArgumentException("Block codec id " + codec.id() + " is taken by " + existing);
+        }
+    }
+
+    // format 1 block: copies the plain records in source[start, end) and records where each record begins
+    static Block fromRecords(final ByteBuffer source, final int start, final int end, final boolean offHeap) {
+        final int size = end - start;
+        final ByteBuffer data = offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        data.put(0, source, start, size);
+
+        int[] recordOffsets = new int[16];
+        int count = 0;
+        for (int position = 0; position < size; ) {
+            if (count == recordOffsets.length) recordOffsets = Arrays.copyOf(recordOffsets, count * 2);
+            recordOffsets[count++] = position;
+            final int valPosition = position + 4 + data.getInt(position);
+            position = valPosition + Cell.encodedLength(data.getInt(valPosition));
+        }
+        return new Block(data, Arrays.copyOf(recordOffsets, count));
+    }
+
+    // format 2 block stored at source[start, end), see BlockBuilder. Throws on a checksum mismatch
+    static Block decode(final ByteBuffer source, final int start, final int end, final boolean offHeap) {
+        final ByteBuffer raw = raw(source, start, end);
+        final int rawLength = raw.limit();
+        final int restartCount = raw.getInt(rawLength - 4);
+        final int entriesEnd = rawLength - 4 - 4 * restartCount;
+        final int[] cursor = new int[1];
+
+        //first pass sizes the expanded copy, the second writes whole keys
+        int count = 0;
+        int expandedSize = 0;
+        for (cursor[0] = 0; cursor[0] < entriesEnd; count++) {
+            final int shared = getVarint(raw, cursor);
+            final int unshared = getVarint(raw, cursor);
+            final int cellLength = Cell.encodedLength(raw.getInt(cursor[0] + unshared));
+            expandedSize += 4 + shared + unshared + cellLength;
+            cursor[0] += unshared + cellLength;
+        }
+
+        final ByteBuffer data = offHeap ? ByteBuffer.allocateDirect(expandedSize) : ByteBuffer.allocate(expandedSize);
+        final int[] recordOffsets = new int[count];
+        byte[] key = new byte[0];
+        cursor[0] = 0;
+        for (int record = 0; record < count; record++) {
+            final int shared = getVarint(raw, cursor);
+            final int unshared = getVarint(raw, cursor);
+            if (shared + unshared > key.length) key = Arrays.copyOf(key, Math.max(shared + unshared, key.length * 2));
+            raw.get(cursor[0], key, shared, unshared);
+            final int cellLength = Cell.encodedLength(raw.getInt(cursor[0] + unshared));
+            recordOffsets[record] = data.position();
+            data.putInt(shared + unshared).put(key, 0, shared + unshared).put(data.position(), raw, cursor[0] + unshared, cellLength);
+            data.position(data.position() + cellLength);
+            cursor[0] += unshared + cellLength;
+        }
+        return new Block(data, recordOffsets);
+    }
+
+    /*
+        Newest version of key with sequence <= sequence in the format 2 block at source[start, end), without
+        expanding the block: a binary search of its restart points, whose keys are stored whole, finds the last
+        one before key and decoding goes on from there, through at most RESTART_INTERVAL entries before the key.
+     */
+    static Cell get(final ByteBuffer source, final int start, final int end, final byte[] key, final long sequence) {
+        final ByteBuffer raw = raw(source, start, end);
+        final int restartCount = raw.getInt(raw.limit() - 4);
+        final int entriesEnd = raw.limit() - 4 - 4 * restartCount;
+        final int[] cursor = new int[1];
+
+        //versions of key may begin before the restart that holds it, so start at the last restart key below it
+        int low = 0;
+        int high = restartCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            cursor[0] = raw.getInt(entriesEnd + 4 * mid);
+            getVarint(raw, cursor); //shared, 0 at a restart
+            final int keyLen = getVarint(raw, cursor);
+            if (compareKey(raw, cursor[0], keyLen, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        cursor[0] = high < 0 ? 0 : raw.getInt(entriesEnd + 4 * high);
+        byte[] entryKey = new byte[key.length];
+        while (cursor[0] < entriesEnd) {
+            final int shared = getVarint(raw, cursor);
+            final int unshared = getVarint(raw, cursor);
+            if (shared + unshared > entryKey.length) entryKey = Arrays.copyOf(entryKey, shared + unshared);
+            raw.get(cursor[0], entryKey, shared, unshared);
+            final int valPosition = cursor[0] + unshared;
+            final int comparison = Arrays.compareUnsigned(entryKey, 0, shared + unshared, key, 0, key.length);
+            if (comparison > 0) return null; //entries are sorted, decoded past where the key would be
+            if (comparison == 0 && Cell.sequence(raw, valPosition) <= sequence) return Cell.decode(raw, valPosition);
+            cursor[0] = valPosition + Cell.encodedLength(raw.getInt(valPosition));
+        }
+        return null;
+    }
+
+    // the checked and decompressed contents of the format 2 block at source[start, end)
+    private static ByteBuffer raw(final ByteBuffer source, final int start, final int end) {
+        final int trailer = end - BlockBuilder.TRAILER_SIZE;
+        final CRC32C crc = new CRC32C();
+        crc.update(source.slice(start, trailer + 5 - start));
+        if ((int) crc.getValue() != source.getInt(trailer + 5)) {
+            throw new UncheckedIOException(new IOException("Block checksum mismatch at offset " + start));
+        }
+        final int rawLength = source.getInt(trailer);
+        final byte codecId = source.get(trailer + 4);
+        if (codecId == 0) {
+            return source.slice(start, rawLength);
+        }
+        final BlockCodec codec = CODECS.get(codecId);
+        if (codec == null) throw new UncheckedIOException(new IOException("Unknown block codec " + codecId));
+        final byte[] compressed = new byte[trailer - start];
+        source.get(start, compressed);
+        try {
+            return ByteBuffer.wrap(codec.decompress(compressed, 0, compressed.length, rawLength), 0, rawLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int getVarint(final ByteBuffer data, final int[] cursor) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = data.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    int size() {
+        return recordOffsets.length;
+    }
+
+    byte[] key(final int record) {
+        final int position = recordOffsets[record];
+        final byte[] keyBytes = new byte[data.getInt(position)];
+        data.get(position + 4, keyBytes);
+        return keyBytes;
+    }
+
+    Cell cell(final int record) {
+        final int position = recordOffsets[record];
+        return Cell.decode(data, position + 4 + data.getInt(position));
+    }
+
+    // newest version of key with sequence <= sequence in this block, null if absent
+    Cell get(final byte[] key, final long sequence) {
+        //first record of key, its versions follow newest first
+        int low = 0;
+        int high = recordOffsets.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int position = recordOffsets[mid];
+            if (compareKey(data, position + 4, data.getInt(position), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        for (int record = low; record < recordOffsets.length; record++) {
+            final int position = recordOffsets[record];
+            final int keyLen = data.getInt(position);
+            if (compareKey(data, position + 4, keyLen, key) != 0) return null;
+            final int valPosition = position + 4 + keyLen;
+            if (Cell.sequence(data, valPosition) <= sequence) return Cell.decode(data, valPosition);
+        }
+        return null;
+    }
+
+    int sizeBytes() {
+        return data.capacity() + 4 * recordOffsets.length + OVERHEAD_BYTES;
+    }
+
+    // unsigned byte order, the order SST keys and the sparse index are searched in
+    static int compareKey(final ByteBuffer data, final int position, final int len, final byte[] key) {
+        final int common = Math.min(len, key.length);
+        for (int i = 0; i < common; i++) {
+            final int comparison = Byte.compareUnsigned(data.get(position + i), key[i]);
+            if (comparison != 0) return comparison;
+        }
+        return Integer.compare(len, key.length);
+    }
+}
@@ -0,0 +1,108 @@
+package lsm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/*
+    Builds one block of a format 2 SST (see SsTable).
+
+    Block layout: entries | restart offsets (int each) | restart count (int), then optionally compressed, followed by
+    the trailer: raw length (int) | codec id (byte) | CRC32C (int) of everything before it.
+    Entry layout: shared key bytes (varint) | unshared key bytes (varint) | key suffix | cell. Every RESTART_INTERVAL
+    entries the key is stored whole (shared = 0) and its offset recorded, so a reader can start decoding there.
+ */
+final class BlockBuilder {
+
+    static final int RESTART_INTERVAL = 16;
+
+    static final int TRAILER_SIZE = 4 + 1 + 4;
+
+    private byte[] buffer = new byte[2 * MiniLsm.INDEX_ITEM_DISTANCE];
+    private int size;
+    private int[] restarts = new int[16];
+    private int restartCount;
+    private int entriesSinceRestart;
+    private byte[] lastKey = new byte[0];
+
+    void add(final byte[] keyBytes, final Cell cell) {
+        int shared = 0;
+        if (entriesSinceRestart == RESTART_INTERVAL || restartCount == 0) {
+            if (restartCount == restarts.length) restarts = Arrays.copyOf(restarts, restartCount * 2);
+            restarts[restartCount++] = size;
+            entriesSinceRestart = 0;
+        } else {
+            final int mismatch = Arrays.mismatch(lastKey, keyBytes);
+            shared = mismatch < 0 ? keyBytes.length : mismatch;
+        }
+        final int unshared = keyBytes.length - shared;
+        ensureCapacity(5 + 5 + unshared + Cell.encodedLength(cell));
+
+        final ByteBuffer bb = ByteBuffer.wrap(buffer).position(size);
+        putVarint(bb, shared);
+        putVarint(bb, unshared);
+        bb.put(keyBytes, shared, unshared);
+        Cell.encode(bb, cell);
+        size = bb.position();
+        entriesSinceRestart++;
+        lastKey = keyBytes;
+    }
+
+    boolean isEmpty() {
+        return restartCount == 0;
+    }
+
+    // uncompressed bytes so far, the writer cuts blocks on this
+    int sizeBytes() {
+        return size + 4 * restartCount + 4;
+    }
+
+    // the finished block as stored in the file, codec null stores it uncompressed
+    byte[] finish(final BlockCodec codec) {
+        ensureCapacity(4 * restartCount + 4);
+        final ByteBuffer bb = ByteBuffer.wrap(buffer).position(size);
+        for (int i = 0; i < restartCount; i++) {
+            bb.putInt(restarts[i]);
+        }
+        bb.putInt(restartCount);
+        final int rawLength = bb.position();
+
+        byte codecId = 0;
+        byte[] payload = buffer;
+        int payloadLength = rawLength;
+        final byte[] compressed = codec == null ? null : codec.compress(buffer, rawLength);
+        if (compressed != null && compressed.length < rawLength - rawLength / 8) { //not worth inflating for less than 12.5%
+            codecId = codec.id();
+            payload = compressed;
+            payloadLength = compressed.length;
+        }
+
+        final ByteBuffer block = ByteBuffer.allocate(payloadLength + TRAILER_SIZE);
+        block.put(payload, 0, payloadLength).putInt(rawLength).put(codecId);
+        final CRC32C crc = new CRC32C();
+        crc.update(block.array(), 0, block.position());
+        block.putInt((int) crc.getValue());
+        return block.array();
+    }
+
+    void reset() {
+        size = 0;
+        restartCount = 0;
+        entriesSinceRestart = 0;
+        lastKey = new byte[0];
+    }
+
+    private void ensureCapacity(final int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    private static void putVarint(final ByteBuffer bb, int value) {
+        while ((value & ~0x7F) != 0) {
+            bb.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        bb.put((byte) value);
+    }
+}
@@ -0,0 +1,108 @@
+package lsm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Size bounded cache of decoded SST blocks keyed by (sst id, block offset), shared by every table of a store.
+    Split into lock striped LRU segments so concurrent readers of different blocks rarely contend.
+ */
+class BlockCache {
+
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final boolean offHeap;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    BlockCache(final long capacityBytes, final boolean offHeap) {
+        this.offHeap = offHeap;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacityBytes / STRIPES);
+        }
+    }
+
+    Block get(final long sstId, final long offset) {
+        final BlockKey blockKey = new BlockKey(sstId, offset);
+        final Block block = stripeFor(blockKey).get(blockKey);
+        if (block == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return block;
+    }
+
+    void put(final long sstId, final long offset, final Block block) {
+        final BlockKey blockKey = new BlockKey(sstId, offset);
+        stripeFor(blockKey).put(blockKey, block);
+    }
+
+    boolean offHeap() {
+        return offHeap;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long sizeBytes() {
+        long sizeBytes = 0;
+        for (Stripe stripe : stripes) {
+            sizeBytes += stripe.usedBytes();
+        }
+        return sizeBytes;
+    }
+
+    private Stripe stripeFor(final BlockKey blockKey) {
+        return stripes[(blockKey.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private record BlockKey(long sstId, long offset) {
+    }
+
+    private final class Stripe {
+        private final long capacityBytes;
+        private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true); //access order
+        private long usedBytes;
+
+        private Stripe(final long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+        }
+
+        private synchronized Block get(final BlockKey blockKey) {
+            return blocks.get(blockKey);
+        }
+
+        private synchronized void put(final BlockKey blockKey, final Block block) {
+            final Block previous = blocks.put(blockKey, block);
+            if (previous != null) usedBytes -= previous.sizeBytes();
+            usedBytes += block.sizeBytes();
+
+            //least recently used first
+            final var iterator = blocks.entrySet().iterator();
+            while (usedBytes > capacityBytes && iterator.hasNext()) {
+                final Map.Entry<BlockKey, Block> eldest = iterator.next();
+                iterator.remove();
+                usedBytes -= eldest.getValue().sizeBytes();
+                evictions.increment();
+            }
+        }
+
+        private synchronized long usedBytes() {
+            return usedBytes;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package lsm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+    Compression applied to each SST block on its own. The id is stored in every block so tables written with
+    different codecs can be mixed; codecs other than DEFLATE must be registered (LsmOptions.blockCodec does that)
+    before a table using them is opened.
+ */
+public interface BlockCodec {
+
+    BlockCodec DEFLATE = new DeflateCodec();
+
+    // 1..127, 0 marks an uncompressed block
+    byte id();
+
+    // null when the block does not get smaller, it is then stored uncompressed
+    byte[] compress(byte[] raw, int length);
+
+    byte[] decompress(byte[] compressed, int offset, int length, int rawLength) throws IOException;
+
+    final class DeflateCodec implements BlockCodec {
+
+        //Deflater and Inflater hold native memory, one of each per thread is reused across blocks
+        private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+        private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+        private DeflateCodec() {
+        }
+
+        @Override
+        public byte id() {
+            return 1;
+        }
+
+        @Override
+        public byte[] compress(final byte[] raw, final int length) {
+            final Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            final byte[] out = new byte[length];
+            final int compressedLength = deflater.deflate(out);
+            return deflater.finished() ? Arrays.copyOf(out, compressedLength) : null;
+        }
+
+        @Override
+        public byte[] decompress(final byte[] compressed, final int offset, final int length, final int rawLength) throws IOException {
+            final Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(compressed, offset, length);
+            final byte[] raw = new byte[rawLength];
+            try {
+                if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+                    throw new IOException("Deflate block does not inflate to " + rawLength + " bytes");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate block", e);
+            }
+            return raw;
+        }
+    }
+}
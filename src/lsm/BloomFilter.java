@@ -0,0 +1,77 @@
+package lsm;
+
+import com.google.common.hash.Hashing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*
+    Fixed size bloom filter over SST keys. Uses a single murmur3 128 bit hash split into two halves and
+    derives the k probe positions by double hashing (h1 + i * h2), so adding or probing a key hashes it once.
+ */
+class BloomFilter {
+
+    private final long[] bits;
+    private final int numHashes;
+
+    BloomFilter(final int expectedKeys, final int bitsPerKey) {
+        final long numBits = Math.max(64, (long) expectedKeys * bitsPerKey);
+        this.bits = new long[(int) ((numBits + 63) / 64)];
+        // k = ln2 * m/n minimises the false positive rate
+        this.numHashes = Math.clamp(Math.round(bitsPerKey * Math.log(2)), 1, 30);
+    }
+
+    private BloomFilter(final long[] bits, final int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    void add(final byte[] key) {
+        addHash(hash(key));
+    }
+
+    void addHash(final long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final long numBits = (long) bits.length * 64;
+        for (int i = 0; i < numHashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(final byte[] key) {
+        final long hash = hash(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final long numBits = (long) bits.length * 64;
+        for (int i = 0; i < numHashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    void writeTo(final DataOutputStream dos) throws IOException {
+        dos.writeInt(numHashes);
+        dos.writeInt(bits.length);
+        for (long word : bits) {
+            dos.writeLong(word);
+        }
+    }
+
+    static BloomFilter readFrom(final DataInputStream dis) throws IOException {
+        final int numHashes = dis.readInt();
+        final long[] bits = new long[dis.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = dis.readLong();
+        }
+        return new BloomFilter(bits, numHashes);
+    }
+
+    // same hash as murmur3 over the UTF-8 string, so filters written for String keys stay valid
+    static long hash(final byte[] key) {
+        return Hashing.murmur3_128().hashBytes(key).asLong();
+    }
+}
@@ -0,0 +1,232 @@
+package lsm;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/*
+    External sort of unsorted records on their way into SSTs, in the phases sorting.ExternalSorter sorts ints with:
+    records are buffered up to memoryBytes, sorted and spilled as run files, then runs are k-way merged MERGE_FAN_IN
+    at a time, phase after phase, until one merge can read them all. That last merge is not written as another run,
+    it is handed to MiniLsm.ingest which streams it into SsTableWriters.
+
+    Run layout: key length (int) | key | value length (int) | value, keys ascending and distinct. Each ingest keeps
+    its runs in a directory of its own under the data dir's RUNS_DIR that close() removes; MiniLsm removes any left
+    behind by a crash on open, see deleteAbandonedRuns.
+ */
+class BulkLoader implements Closeable {
+
+    static final String RUNS_DIR = "ingest";
+
+    private static final int MERGE_FAN_IN = 64;
+
+    private static final int RECORD_OVERHEAD = 64; //entry, arrays and list slot, rough heap cost beyond the bytes
+
+    private final Path runDir;
+    private final long memoryBytes;
+    private final List<File> runs = new ArrayList<>(); //oldest input first
+    private final List<RunReader> openReaders = new ArrayList<>();
+    private byte[] minKey;
+    private byte[] maxKey;
+    private long inputBytes;
+    private int nextRun;
+
+    BulkLoader(final Path runDir, final long memoryBytes) throws IOException {
+        this.runDir = Files.createDirectories(runDir);
+        this.memoryBytes = memoryBytes;
+    }
+
+    // splits the records into sorted runs and merges runs until a single merge can finish the sort
+    void sort(final Iterator<? extends Map.Entry<byte[], byte[]>> records) throws IOException {
+        final List<Map.Entry<byte[], byte[]>> batch = new ArrayList<>();
+        long batchBytes = 0;
+        while (records.hasNext()) {
+            final Map.Entry<byte[], byte[]> record = records.next();
+            batch.add(record);
+            batchBytes += record.getKey().length + record.getValue().length + RECORD_OVERHEAD;
+            inputBytes += MiniLsm.encodedLength(record.getKey(), Cell.of(record.getValue()));
+            if (batchBytes >= memoryBytes) {
+                spill(batch);
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) spill(batch);
+
+        while (runs.size() > MERGE_FAN_IN) {
+            final List<File> merged = new ArrayList<>();
+            for (int start = 0; start < runs.size(); start += MERGE_FAN_IN) {
+                merged.add(mergeRuns(runs.subList(start, Math.min(start + MERGE_FAN_IN, runs.size()))));
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+    }
+
+    boolean isEmpty() {
+        return runs.isEmpty();
+    }
+
+    // the records read, in the key/cell layout MiniLsm counts written bytes in
+    long inputBytes() {
+        return inputBytes;
+    }
+
+    byte[] minKey() {
+        return minKey;
+    }
+
+    byte[] maxKey() {
+        return maxKey;
+    }
+
+    // every record in key order, of several with the same key only the one given last. Cells have sequence 0
+    Iterator<Map.Entry<byte[], Cell>> merged() throws IOException {
+        return new MergingIterator(open(runs));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RunReader reader : openReaders) {
+            reader.close();
+        }
+        deleteRuns(runDir);
+    }
+
+    // empties runsDir of the runs of ingests a crash interrupted, before this store starts any of its own
+    static void deleteAbandonedRuns(final Path runsDir) throws IOException {
+        try (Stream<Path> entries = Files.list(runsDir)) {
+            for (Path entry : entries.toList()) {
+                if (Files.isDirectory(entry)) {
+                    deleteRuns(entry);
+                } else {
+                    Files.delete(entry);
+                }
+            }
+        }
+    }
+
+    static void deleteRuns(final Path runDir) throws IOException {
+        try (Stream<Path> files = Files.list(runDir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(runDir);
+    }
+
+    private void spill(final List<Map.Entry<byte[], byte[]>> batch) throws IOException {
+        batch.sort(Map.Entry.comparingByKey(MiniLsm.KEY_ORDER)); //stable, so the last of equal keys stays last
+        final File run = nextRunFile();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (int i = 0; i < batch.size(); i++) {
+                final byte[] key = batch.get(i).getKey();
+                if (i + 1 < batch.size() && Arrays.equals(key, batch.get(i + 1).getKey())) continue;
+                final byte[] value = batch.get(i).getValue();
+                dos.writeInt(key.length);
+                dos.write(key);
+                dos.writeInt(value.length);
+                dos.write(value);
+            }
+        }
+        runs.add(run);
+        final byte[] first = batch.getFirst().getKey();
+        final byte[] last = batch.getLast().getKey();
+        if (minKey == null || MiniLsm.KEY_ORDER.compare(first, minKey) < 0) minKey = first;
+        if (maxKey == null || MiniLsm.KEY_ORDER.compare(last, maxKey) > 0) maxKey = last;
+    }
+
+    private File mergeRuns(final List<File> inputs) throws IOException {
+        final List<RunReader> readers = open(inputs);
+        final File run = nextRunFile();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            final MergingIterator merged = new MergingIterator(readers);
+            while (merged.hasNext()) {
+                final Map.Entry<byte[], Cell> entry = merged.next();
+                dos.writeInt(entry.getKey().length);
+                dos.write(entry.getKey());
+                dos.writeInt(entry.getValue().value().length);
+                dos.write(entry.getValue().value());
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+                openReaders.remove(reader);
+            }
+        }
+        for (File input : inputs) {
+            Files.delete(input.toPath());
+        }
+        return run;
+    }
+
+    // newest first, the order MergingIterator keeps the winning copy of a key by
+    private List<RunReader> open(final List<File> oldestFirst) throws IOException {
+        final List<RunReader> readers = new ArrayList<>();
+        for (File run : oldestFirst.reversed()) {
+            final RunReader reader = new RunReader(run);
+            openReaders.add(reader);
+            readers.add(reader);
+        }
+        return readers;
+    }
+
+    private File nextRunFile() {
+        return runDir.resolve("run-" + nextRun++).toFile();
+    }
+
+    private static final class RunReader implements Iterator<Map.Entry<byte[], Cell>>, Closeable {
+
+        private final DataInputStream dis;
+        private Map.Entry<byte[], Cell> head;
+
+        private RunReader(final File run) throws IOException {
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+            this.head = read();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return head != null;
+        }
+
+        @Override
+        public Map.Entry<byte[], Cell> next() {
+            if (head == null) throw new NoSuchElementException();
+            final Map.Entry<byte[], Cell> entry = head;
+            try {
+                head = read();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entry;
+        }
+
+        private Map.Entry<byte[], Cell> read() throws IOException {
+            final int keyLength;
+            try {
+                keyLength = dis.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            final byte[] key = new byte[keyLength];
+            dis.readFully(key);
+            final byte[] value = new byte[dis.readInt()];
+            dis.readFully(value);
+            return new AbstractMap.SimpleImmutableEntry<>(key, Cell.of(value));
+        }
+
+        @Override
+        public void close() throws IOException {
+            dis.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package lsm;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+    One version of a key: a value, possibly with an expiry, or a tombstone that hides every older version of the key.
+    sequence orders versions of the same key, newer writes get larger numbers. The value array is never modified
+    once a cell is built.
+
+    Encoded after the key as valLen [sequence] [expiresAt] [value]. The top bits of valLen are flags saying which of
+    the optional 8 byte fields follow and whether this is a tombstone, the rest is the value length, so values are
+    limited to MAX_VALUE_LENGTH. Plain values without a sequence keep the original record layout, so files written
+    before versions existed read back unchanged with sequence 0, and their tombstones, a valLen of
+    LEGACY_TOMBSTONE_LEN that sets the otherwise unused sign bit, still read as tombstones.
+ */
+record Cell(byte[] value, long expiresAtMillis, long sequence) {
+
+    Cell {
+        if (value != null && value.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes, at most " + MAX_VALUE_LENGTH + " fit");
+        }
+    }
+
+    static final long NO_EXPIRY = 0;
+
+    static final Cell TOMBSTONE = new Cell(null, NO_EXPIRY, 0);
+
+    private static final int EXPIRY_FLAG = 0x40000000;
+
+    private static final int SEQUENCE_FLAG = 0x20000000;
+
+    private static final int TOMBSTONE_FLAG = 0x10000000;
+
+    private static final int LENGTH_MASK = 0x0FFFFFFF;
+
+    static final int MAX_VALUE_LENGTH = LENGTH_MASK;
+
+    private static final int LEGACY_TOMBSTONE_LEN = -1; //before the flags, no sequence or expiry follows
+
+    static Cell of(final byte[] value) {
+        return new Cell(value, NO_EXPIRY, 0);
+    }
+
+    Cell withSequence(final long sequence) {
+        return new Cell(value, expiresAtMillis, sequence);
+    }
+
+    // same version, value dropped
+    Cell toTombstone() {
+        return new Cell(null, NO_EXPIRY, sequence);
+    }
+
+    boolean isTombstone() {
+        return value == null;
+    }
+
+    boolean isExpired(final long nowMillis) {
+        return expiresAtMillis != NO_EXPIRY && expiresAtMillis <= nowMillis;
+    }
+
+    // neither deleted nor expired, a reader should see the value
+    boolean isLive(final long nowMillis) {
+        return !isTombstone() && !isExpired(nowMillis);
+    }
+
+    // bytes taken by an encoded cell, valLen field included, given that leading field
+    static int encodedLength(final int valLenField) {
+        if (valLenField == LEGACY_TOMBSTONE_LEN) return 4;
+        return 4
+                + ((valLenField & SEQUENCE_FLAG) != 0 ? 8 : 0)
+                + ((valLenField & EXPIRY_FLAG) != 0 ? 8 : 0)
+                + (valLenField & LENGTH_MASK);
+    }
+
+    static int encodedLength(final Cell cell) {
+        return 4
+                + (cell.sequence != 0 ? 8 : 0)
+                + (cell.expiresAtMillis != NO_EXPIRY ? 8 : 0)
+                + (cell.isTombstone() ? 0 : cell.value.length);
+    }
+
+    static void encode(final ByteBuffer bb, final Cell cell) {
+        int valLenField = cell.isTombstone() ? TOMBSTONE_FLAG : cell.value.length;
+        if (cell.sequence != 0) valLenField |= SEQUENCE_FLAG;
+        if (cell.expiresAtMillis != NO_EXPIRY) valLenField |= EXPIRY_FLAG;
+        bb.putInt(valLenField);
+        if (cell.sequence != 0) bb.putLong(cell.sequence);
+        if (cell.expiresAtMillis != NO_EXPIRY) bb.putLong(cell.expiresAtMillis);
+        if (!cell.isTombstone()) bb.put(cell.value);
+    }
+
+    // sequence of the cell whose valLen field is at position, without decoding the value
+    static long sequence(final ByteBuffer data, final int position) {
+        final int valLenField = data.getInt(position);
+        return valLenField != LEGACY_TOMBSTONE_LEN && (valLenField & SEQUENCE_FLAG) != 0 ? data.getLong(position + 4) : 0;
+    }
+
+    // cell whose valLen field is at position, absolute reads so the buffer can be shared
+    static Cell decode(final ByteBuffer data, int position) {
+        final int valLenField = data.getInt(position);
+        if (valLenField == LEGACY_TOMBSTONE_LEN) return TOMBSTONE;
+        position += 4;
+        long sequence = 0;
+        if ((valLenField & SEQUENCE_FLAG) != 0) {
+            sequence = data.getLong(position);
+            position += 8;
+        }
+        long expiresAtMillis = NO_EXPIRY;
+        if ((valLenField & EXPIRY_FLAG) != 0) {
+            expiresAtMillis = data.getLong(position);
+            position += 8;
+        }
+        if ((valLenField & TOMBSTONE_FLAG) != 0) return new Cell(null, expiresAtMillis, sequence);
+        final byte[] valBytes = new byte[valLenField & LENGTH_MASK];
+        data.get(position, valBytes);
+        return new Cell(valBytes, expiresAtMillis, sequence);
+    }
+
+    static Cell read(final DataInput in) throws IOException {
+        return read(in.readInt(), in);
+    }
+
+    // rest of a cell whose valLen field was already read from in
+    static Cell read(final int valLenField, final DataInput in) throws IOException {
+        if (valLenField == LEGACY_TOMBSTONE_LEN) return TOMBSTONE;
+        final long sequence = (valLenField & SEQUENCE_FLAG) != 0 ? in.readLong() : 0;
+        final long expiresAtMillis = (valLenField & EXPIRY_FLAG) != 0 ? in.readLong() : NO_EXPIRY;
+        if ((valLenField & TOMBSTONE_FLAG) != 0) return new Cell(null, expiresAtMillis, sequence);
+        final byte[] valBytes = new byte[valLenField & LENGTH_MASK];
+        in.readFully(valBytes);
+        return new Cell(valBytes, expiresAtMillis, sequence);
+    }
+}
@@ -0,0 +1,181 @@
+package lsm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Picks SSTs to merge and writes the merged run. Only ever runs on MiniLsm's single compaction thread.
+
+    LEVELED:     level 0 holds overlapping flush outputs, every deeper level is a set of non overlapping files
+                 that is allowed to grow levelSizeMultiplier times larger than the one above it.
+    SIZE_TIERED: everything stays in level 0, runs of similarly sized neighbouring files are merged into one.
+
+    Merged output goes through VersionFilter, which keeps the versions live snapshots still see and drops tombstones
+    and expired values once no table older than the inputs can hold their key.
+ */
+class Compactor {
+
+    public enum Strategy {
+        LEVELED, SIZE_TIERED
+    }
+
+    private static final int MAX_LEVEL = 6;
+
+    private final MiniLsm lsm;
+    private final LsmOptions options;
+    private final IoThrottle ioThrottle;
+
+    //last key compacted out of each level, so successive compactions walk the key space round robin
+    private final Map<Integer, byte[]> compactPointers = new HashMap<>();
+
+    Compactor(final MiniLsm lsm, final LsmOptions options) {
+        this.lsm = lsm;
+        this.options = options;
+        this.ioThrottle = new IoThrottle(options.compactionBytesPerSecond());
+    }
+
+    // runs compactions until no trigger fires, returns false if there was nothing to do
+    boolean compact() throws IOException {
+        boolean compacted = false;
+        for (Compaction compaction = pick(); compaction != null && !lsm.isClosing(); compaction = pick()) {
+            run(compaction);
+            compacted = true;
+        }
+        return compacted;
+    }
+
+    // deepest level an ingested key range can go to while staying above every table it overlaps, all of them older
+    int ingestLevel(final byte[] minKey, final byte[] maxKey) {
+        if (options.compactionStrategy() == Strategy.SIZE_TIERED) return 0;
+        int level = MAX_LEVEL;
+        for (SsTable sst : lsm.sstIndices.values()) {
+            if (sst.overlaps(minKey, maxKey)) level = Math.min(level, sst.level - 1);
+        }
+        return Math.max(level, 0);
+    }
+
+    private Compaction pick() {
+        final List<SsTable> tables = new ArrayList<>(lsm.sstIndices.values());
+        final Compaction compaction = options.compactionStrategy() == Strategy.LEVELED ? pickLeveled(tables) : pickSizeTiered(tables);
+        if (compaction != null) {
+            //tables after the first input in search order hold the older data, newer tables only shadow the output
+            final int firstInput = compaction.inputs().stream().mapToInt(tables::indexOf).min().orElseThrow();
+            compaction.olderTables().addAll(tables.subList(firstInput, tables.size()));
+            compaction.olderTables().removeAll(compaction.inputs());
+        }
+        return compaction;
+    }
+
+    private Compaction pickLeveled(final List<SsTable> tables) {
+        final List<SsTable> level0 = tablesAt(tables, 0);
+        if (level0.size() >= options.level0CompactionTrigger()) {
+            final List<SsTable> inputs = new ArrayList<>(level0);
+            inputs.addAll(overlapping(tablesAt(tables, 1), level0));
+            return new Compaction(inputs, 1, new ArrayList<>());
+        }
+
+        long maxBytes = options.baseLevelBytes();
+        for (int level = 1; level < MAX_LEVEL; level++, maxBytes *= options.levelSizeMultiplier()) {
+            final List<SsTable> levelTables = tablesAt(tables, level);
+            if (levelTables.stream().mapToLong(sst -> sst.sizeBytes).sum() <= maxBytes) continue;
+
+            levelTables.sort(Comparator.comparing(sst -> sst.minKey, MiniLsm.KEY_ORDER));
+            final byte[] compactPointer = compactPointers.get(level);
+            final SsTable victim = levelTables.stream()
+                    .filter(sst -> compactPointer == null || MiniLsm.KEY_ORDER.compare(sst.minKey, compactPointer) > 0)
+                    .findFirst()
+                    .orElse(levelTables.getFirst());
+            compactPointers.put(level, victim.maxKey);
+
+            final List<SsTable> inputs = new ArrayList<>(List.of(victim));
+            inputs.addAll(overlapping(tablesAt(tables, level + 1), inputs));
+            return new Compaction(inputs, level + 1, new ArrayList<>());
+        }
+        return null;
+    }
+
+    private Compaction pickSizeTiered(final List<SsTable> tables) {
+        //neighbours in search order, so a merged run slots in exactly where its inputs were
+        final List<SsTable> level0 = tablesAt(tables, 0);
+        for (int start = 0; start < level0.size(); start++) {
+            final List<SsTable> bucket = new ArrayList<>(List.of(level0.get(start)));
+            long bucketBytes = level0.get(start).sizeBytes;
+            for (int i = start + 1; i < level0.size() && bucket.size() < options.sizeTieredMaxMergeWidth(); i++) {
+                final double average = (double) bucketBytes / bucket.size();
+                final long size = level0.get(i).sizeBytes;
+                if (size < average * options.sizeTieredBucketLow() || size > average * options.sizeTieredBucketHigh()) break;
+                bucket.add(level0.get(i));
+                bucketBytes += size;
+            }
+            if (bucket.size() >= options.sizeTieredMinMergeWidth()) {
+                return new Compaction(bucket, 0, new ArrayList<>());
+            }
+        }
+        return null;
+    }
+
+    private void run(final Compaction compaction) throws IOException {
+        final long start = System.nanoTime();
+        final List<SsTable> inputs = compaction.inputs();
+        inputs.sort(Comparator.comparing(sst -> sst.file.getName(), SsTable.SEARCH_ORDER));
+        final long seq = inputs.stream().mapToLong(sst -> sst.seq).max().orElseThrow();
+
+        final List<SsTableIterator> sources = new ArrayList<>();
+        final List<SsTable> outputs = new ArrayList<>();
+        SsTableWriter writer = null;
+        try {
+            for (SsTable input : inputs) {
+                sources.add(new SsTableIterator(input));
+            }
+            //snapshots taken from here on are at least as new as every input, they see the newest versions we keep
+            final VersionFilter merged = new VersionFilter(
+                    new MergingIterator(sources), lsm.liveSnapshots(), compaction.olderTables(), System.currentTimeMillis());
+            //size tiered keeps one sorted run, leveled splits its output into target sized files
+            final long targetFileSize = compaction.outputLevel() == 0 ? Long.MAX_VALUE : options.targetFileSizeBytes();
+            while (merged.hasNext()) {
+                final Map.Entry<byte[], Cell> entry = merged.next();
+                //never split the versions of one key across files, readers stop at the first table holding the key
+                if (writer != null && writer.size() >= targetFileSize && !Arrays.equals(entry.getKey(), writer.lastKey())) {
+                    outputs.add(writer.finish());
+                    writer.close();
+                    writer = null;
+                }
+                if (writer == null) {
+                    writer = lsm.newSsTableWriter(compaction.outputLevel(), seq, ioThrottle);
+                }
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            if (writer != null) {
+                outputs.add(writer.finish());
+            }
+            lsm.replaceSsTables(inputs, outputs);
+            lsm.metrics.compactionLatency.recordSince(start);
+            lsm.metrics.compactions.increment();
+            lsm.metrics.compactionBytesRead.add(inputs.stream().mapToLong(sst -> sst.sizeBytes).sum());
+            lsm.metrics.compactionBytesWritten.add(outputs.stream().mapToLong(sst -> sst.sizeBytes).sum());
+        } catch (IOException | RuntimeException e) {
+            outputs.forEach(SsTable::release);
+            throw e;
+        } finally {
+            if (writer != null) writer.close();
+        }
+    }
+
+    private static List<SsTable> tablesAt(final List<SsTable> tables, final int level) {
+        return new ArrayList<>(tables.stream().filter(sst -> sst.level == level).toList());
+    }
+
+    private static List<SsTable> overlapping(final List<SsTable> candidates, final List<SsTable> inputs) {
+        final byte[] fromKey = inputs.stream().map(sst -> sst.minKey).min(MiniLsm.KEY_ORDER).orElseThrow();
+        final byte[] toKey = inputs.stream().map(sst -> sst.maxKey).max(MiniLsm.KEY_ORDER).orElseThrow();
+        return candidates.stream().filter(sst -> sst.overlaps(fromKey, toKey)).toList();
+    }
+
+    private record Compaction(List<SsTable> inputs, int outputLevel, List<SsTable> olderTables) {
+    }
+}
@@ -1,3 +1,5 @@
+package lsm;
+
 import com.google.common.hash.Hashing;
 
 import java.nio.charset.Charset;
@@ -14,7 +16,16 @@ public class ConsistentHash {
     private NavigableMap<Integer, String> nodeRing = new TreeMap<>();
 
     public String getNode(final String key) {
-        final int hash = hash(key);
+        return nodeAt(hash(key));
+    }
+
+    // same node as the String form of key, whose bytes are UTF-8 (the default charset)
+    public String getNode(final byte[] key) {
+        return nodeAt(Hashing.murmur3_32_fixed().hashBytes(key).asInt());
+    }
+
+    private String nodeAt(final int hash) {
+        if (nodeRing.isEmpty()) throw new IllegalStateException("No nodes in the ring");
         if (Objects.isNull(nodeRing.ceilingKey(hash))) {
             return nodeRing.firstEntry().getValue();
         } else {
@@ -22,13 +33,13 @@ public class ConsistentHash {
         }
     }
 
-    private void addNode(String nodeId) {
+    public void addNode(String nodeId) {
         for (int vNode : getVNodes(nodeId)) {
             nodeRing.put(vNode, nodeId);
         }
     }
 
-    private void removeNode(String nodeId) {
+    public void removeNode(String nodeId) {
         for (int vNode : getVNodes(nodeId)) {
             nodeRing.remove(vNode);
         }
@@ -0,0 +1,69 @@
+package lsm;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Distribution of non negative values, latencies in nanoseconds or counts, in power of two buckets: bucket 0 holds
+    zero and bucket i the values in [2^(i-1), 2^i). Recording is a few LongAdder updates with no lock, cheap enough
+    for every put and get. Percentiles are reported as the upper bound of their bucket, so within a factor of two.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(final long value) {
+        buckets[BUCKETS - Long.numberOfLeadingZeros(Math.max(value, 0))].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    // nanoseconds since startNanos, taken from System.nanoTime()
+    void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // counters are read one after another, a snapshot taken under load can be off by the values recorded meanwhile
+    Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        final long maxValue = max.get();
+        return new Snapshot(
+                total,
+                total == 0 ? 0 : (double) sum.sum() / total,
+                percentile(counts, total, 0.50, maxValue),
+                percentile(counts, total, 0.99, maxValue),
+                percentile(counts, total, 0.999, maxValue),
+                maxValue);
+    }
+
+    private static long percentile(final long[] counts, final long total, final double quantile, final long maxValue) {
+        final long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                final long upperBound = i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upperBound, maxValue);
+            }
+        }
+        return 0;
+    }
+
+    public record Snapshot(long count, double mean, long p50, long p99, long p999, long max) {
+    }
+}
@@ -0,0 +1,46 @@
+package lsm;
+
+import ratelimiter.TokenBucketRateLimiter;
+
+import java.time.temporal.ChronoUnit;
+
+/*
+    Caps background write bandwidth with a token bucket where one token is one 4KB chunk.
+    Not thread safe, each background thread owns its own throttle.
+ */
+class IoThrottle {
+
+    static final IoThrottle UNLIMITED = new IoThrottle(0);
+
+    private static final int CHUNK_SIZE = 4 * 1024;
+
+    private final TokenBucketRateLimiter rateLimiter;
+    private long pendingBytes;
+
+    IoThrottle(final long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            this.rateLimiter = null;
+        } else {
+            final double chunksPerSecond = Math.max(1.0, (double) bytesPerSecond / CHUNK_SIZE);
+            //one second worth of burst
+            this.rateLimiter = new TokenBucketRateLimiter(chunksPerSecond, new TokenBucketRateLimiter.RefillRate(chunksPerSecond, ChronoUnit.SECONDS));
+        }
+    }
+
+    // blocks until the bytes fit in the budget
+    void acquire(final int bytes) {
+        if (rateLimiter == null) return;
+        pendingBytes += bytes;
+        while (pendingBytes >= CHUNK_SIZE) {
+            while (!rateLimiter.isAdmissible("io")) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            pendingBytes -= CHUNK_SIZE;
+        }
+    }
+}
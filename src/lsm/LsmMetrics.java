@@ -0,0 +1,144 @@
+package lsm;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+    Counters and histograms a MiniLsm updates as it works, shared with its WAL writer and compactor. Everything is a
+    LongAdder or a Histogram so hot paths never contend on a lock; MiniLsm.metrics() reads them into a MetricsSnapshot.
+
+    Bytes written by the user count each record as its key and cell, the layout the WAL and SSTs store it in, so
+    write amplification is everything the store wrote over that: WAL, flushed, compacted and ingested SST bytes.
+ */
+class LsmMetrics {
+
+    final LongAdder writes = new LongAdder(); //puts, deletes and batches
+    final LongAdder gets = new LongAdder();
+    final LongAdder userBytesWritten = new LongAdder();
+    final LongAdder walBytesWritten = new LongAdder();
+    final LongAdder walGroups = new LongAdder(); //group commits, writes / walGroups is the mean group size
+    final LongAdder flushes = new LongAdder();
+    final LongAdder flushBytesWritten = new LongAdder();
+    final LongAdder compactions = new LongAdder();
+    final LongAdder compactionBytesRead = new LongAdder();
+    final LongAdder compactionBytesWritten = new LongAdder();
+    final LongAdder compactionFailures = new LongAdder();
+    final LongAdder ingestBytesWritten = new LongAdder();
+    final LongAdder sstProbes = new LongAdder(); //SSTs a get searched, after key range and bloom filter checks
+    final LongAdder bloomFilterHits = new LongAdder(); //SSTs skipped because the filter ruled the key out
+    final LongAdder bloomFilterFalsePositives = new LongAdder(); //SSTs searched in vain
+    final LongAdder writeSlowdowns = new LongAdder();
+    final LongAdder writeStops = new LongAdder();
+
+    final Histogram writeLatency = new Histogram();
+    final Histogram getLatency = new Histogram();
+    final Histogram fsyncLatency = new Histogram();
+    final Histogram flushLatency = new Histogram();
+    final Histogram compactionLatency = new Histogram();
+    final Histogram sstProbesPerGet = new Histogram();
+    final Histogram writeStallLatency = new Histogram();
+
+    long bytesWrittenToDisk() {
+        return walBytesWritten.sum() + flushBytesWritten.sum() + compactionBytesWritten.sum() + ingestBytesWritten.sum();
+    }
+
+    // every attribute read takes a fresh snapshot, JMX clients poll rarely enough for that not to matter
+    static final class MXBean implements MiniLsmMXBean {
+
+        private final Supplier<MetricsSnapshot> snapshots;
+
+        MXBean(final Supplier<MetricsSnapshot> snapshots) {
+            this.snapshots = snapshots;
+        }
+
+        @Override
+        public long getWrites() {
+            return snapshots.get().writes();
+        }
+
+        @Override
+        public long getGets() {
+            return snapshots.get().gets();
+        }
+
+        @Override
+        public long getWriteLatencyP50() {
+            return snapshots.get().writeLatency().p50();
+        }
+
+        @Override
+        public long getWriteLatencyP99() {
+            return snapshots.get().writeLatency().p99();
+        }
+
+        @Override
+        public long getGetLatencyP50() {
+            return snapshots.get().getLatency().p50();
+        }
+
+        @Override
+        public long getGetLatencyP99() {
+            return snapshots.get().getLatency().p99();
+        }
+
+        @Override
+        public long getFsyncLatencyP99() {
+            return snapshots.get().fsyncLatency().p99();
+        }
+
+        @Override
+        public double getFlushLatencyMean() {
+            return snapshots.get().flushLatency().mean();
+        }
+
+        @Override
+        public double getCompactionLatencyMean() {
+            return snapshots.get().compactionLatency().mean();
+        }
+
+        @Override
+        public double getWriteAmplification() {
+            return snapshots.get().writeAmplification();
+        }
+
+        @Override
+        public double getReadAmplification() {
+            return snapshots.get().readAmplification();
+        }
+
+        @Override
+        public long getWriteStops() {
+            return snapshots.get().writeStops();
+        }
+
+        @Override
+        public long getMemtableBytes() {
+            return snapshots.get().memtableBytes();
+        }
+
+        @Override
+        public long getWalSegmentBytes() {
+            return snapshots.get().walSegmentBytes();
+        }
+
+        @Override
+        public int getSstCount() {
+            return snapshots.get().sstCount();
+        }
+
+        @Override
+        public long getSstBytes() {
+            return snapshots.get().sstBytes();
+        }
+
+        @Override
+        public long getBlockCacheHits() {
+            return snapshots.get().blockCacheHits();
+        }
+
+        @Override
+        public long getBlockCacheMisses() {
+            return snapshots.get().blockCacheMisses();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package lsm;
+
+/*
+    Tunables for MiniLsm. Defaults match the original hard coded behaviour (fsync on every write).
+ */
+public class LsmOptions {
+
+    private WriteAheadLog.Durability durability = WriteAheadLog.Durability.SYNC_EVERY_COMMIT;
+    private long syncIntervalMillis = 100;
+    private int bloomBitsPerKey = 10; //~1% false positives, 0 disables filters
+    private Compactor.Strategy compactionStrategy = Compactor.Strategy.LEVELED;
+    private int level0CompactionTrigger = 4; //leveled: L0 files that trigger a merge into L1
+    private long baseLevelBytes = 40L * 1024 * 1024; //leveled: L1 budget, each deeper level gets levelSizeMultiplier times more
+    private int levelSizeMultiplier = 10;
+    private long targetFileSizeBytes = 4L * 1024 * 1024; //leveled: output file size
+    private int sizeTieredMinMergeWidth = 4; //size tiered: similar sized files needed to trigger a merge
+    private int sizeTieredMaxMergeWidth = 32;
+    private double sizeTieredBucketLow = 0.5; //size tiered: files within [low, high] x bucket average count as similar
+    private double sizeTieredBucketHigh = 1.5;
+    private long compactionBytesPerSecond = 0; //0 means unthrottled
+    private long flushBytesPerSecond = 0; //0 means unthrottled
+    private int slowdownImmutableMemtables = 4; //memtables waiting for flush before writes are delayed, 0 disables
+    private int stopImmutableMemtables = 8; //memtables waiting for flush before writes wait for one, 0 disables
+    private int slowdownLevel0Files = 20; //level 0 SSTs before writes are delayed, 0 disables
+    private int stopLevel0Files = 36; //level 0 SSTs before writes wait for compaction, 0 disables
+    private long writeStallTimeoutMillis = 30_000; //a write stopped longer than this fails
+    private long blockCacheBytes = 64L * 1024 * 1024; //shared cache of decoded SST blocks, 0 disables it
+    private boolean blockCacheOffHeap = false; //keep cached blocks in direct buffers outside the heap
+    private BlockCodec blockCodec = null; //per block compression of new SSTs, e.g. BlockCodec.DEFLATE, null disables it
+    private int multiGetParallelism = 1; //SSTs a multiGet searches at once, 1 searches them one after another
+    private long ingestMemoryBytes = 64L * 1024 * 1024; //records an ingest sorts in memory before spilling a run
+    private boolean jmxEnabled = false; //register metrics as a MiniLsmMXBean with the platform MBean server
+
+    public LsmOptions durability(final WriteAheadLog.Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public LsmOptions syncIntervalMillis(final long syncIntervalMillis) {
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    public LsmOptions bloomBitsPerKey(final int bloomBitsPerKey) {
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        return this;
+    }
+
+    public LsmOptions compactionStrategy(final Compactor.Strategy compactionStrategy) {
+        this.compactionStrategy = compactionStrategy;
+        return this;
+    }
+
+    public LsmOptions level0CompactionTrigger(final int level0CompactionTrigger) {
+        this.level0CompactionTrigger = level0CompactionTrigger;
+        return this;
+    }
+
+    public LsmOptions baseLevelBytes(final long baseLevelBytes) {
+        this.baseLevelBytes = baseLevelBytes;
+        return this;
+    }
+
+    public LsmOptions levelSizeMultiplier(final int levelSizeMultiplier) {
+        this.levelSizeMultiplier = levelSizeMultiplier;
+        return this;
+    }
+
+    public LsmOptions targetFileSizeBytes(final long targetFileSizeBytes) {
+        this.targetFileSizeBytes = targetFileSizeBytes;
+        return this;
+    }
+
+    public LsmOptions sizeTieredMinMergeWidth(final int sizeTieredMinMergeWidth) {
+        this.sizeTieredMinMergeWidth = sizeTieredMinMergeWidth;
+        return this;
+    }
+
+    public LsmOptions sizeTieredMaxMergeWidth(final int sizeTieredMaxMergeWidth) {
+        this.sizeTieredMaxMergeWidth = sizeTieredMaxMergeWidth;
+        return this;
+    }
+
+    public LsmOptions sizeTieredBucketLow(final double sizeTieredBucketLow) {
+        this.sizeTieredBucketLow = sizeTieredBucketLow;
+        return this;
+    }
+
+    public LsmOptions sizeTieredBucketHigh(final double sizeTieredBucketHigh) {
+        this.sizeTieredBucketHigh = sizeTieredBucketHigh;
+        return this;
+    }
+
+    public LsmOptions compactionBytesPerSecond(final long compactionBytesPerSecond) {
+        this.compactionBytesPerSecond = compactionBytesPerSecond;
+        return this;
+    }
+
+    public LsmOptions flushBytesPerSecond(final long flushBytesPerSecond) {
+        this.flushBytesPerSecond = flushBytesPerSecond;
+        return this;
+    }
+
+    public LsmOptions slowdownImmutableMemtables(final int slowdownImmutableMemtables) {
+        this.slowdownImmutableMemtables = slowdownImmutableMemtables;
+        return this;
+    }
+
+    public LsmOptions stopImmutableMemtables(final int stopImmutableMemtables) {
+        this.stopImmutableMemtables = stopImmutableMemtables;
+        return this;
+    }
+
+    public LsmOptions slowdownLevel0Files(final int slowdownLevel0Files) {
+        this.slowdownLevel0Files = slowdownLevel0Files;
+        return this;
+    }
+
+    public LsmOptions stopLevel0Files(final int stopLevel0Files) {
+        this.stopLevel0Files = stopLevel0Files;
+        return this;
+    }
+
+    public LsmOptions writeStallTimeoutMillis(final long writeStallTimeoutMillis) {
+        this.writeStallTimeoutMillis = writeStallTimeoutMillis;
+        return this;
+    }
+
+    public LsmOptions blockCacheBytes(final long blockCacheBytes) {
+        this.blockCacheBytes = blockCacheBytes;
+        return this;
+    }
+
+    public LsmOptions blockCacheOffHeap(final boolean blockCacheOffHeap) {
+        this.blockCacheOffHeap = blockCacheOffHeap;
+        return this;
+    }
+
+    public LsmOptions blockCodec(final BlockCodec blockCodec) {
+        this.blockCodec = blockCodec;
+        return this;
+    }
+
+    public LsmOptions multiGetParallelism(final int multiGetParallelism) {
+        this.multiGetParallelism = multiGetParallelism;
+        return this;
+    }
+
+    public LsmOptions ingestMemoryBytes(final long ingestMemoryBytes) {
+        this.ingestMemoryBytes = ingestMemoryBytes;
+        return this;
+    }
+
+    public LsmOptions jmxEnabled(final boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+
+    public WriteAheadLog.Durability durability() {
+        return durability;
+    }
+
+    public long syncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    public int bloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public Compactor.Strategy compactionStrategy() {
+        return compactionStrategy;
+    }
+
+    public int level0CompactionTrigger() {
+        return level0CompactionTrigger;
+    }
+
+    public long baseLevelBytes() {
+        return baseLevelBytes;
+    }
+
+    public int levelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    public long targetFileSizeBytes() {
+        return targetFileSizeBytes;
+    }
+
+    public int sizeTieredMinMergeWidth() {
+        return sizeTieredMinMergeWidth;
+    }
+
+    public int sizeTieredMaxMergeWidth() {
+        return sizeTieredMaxMergeWidth;
+    }
+
+    public double sizeTieredBucketLow() {
+        return sizeTieredBucketLow;
+    }
+
+    public double sizeTieredBucketHigh() {
+        return sizeTieredBucketHigh;
+    }
+
+    public long compactionBytesPerSecond() {
+        return compactionBytesPerSecond;
+    }
+
+    public long flushBytesPerSecond() {
+        return flushBytesPerSecond;
+    }
+
+    public int slowdownImmutableMemtables() {
+        return slowdownImmutableMemtables;
+    }
+
+    public int stopImmutableMemtables() {
+        return stopImmutableMemtables;
+    }
+
+    public int slowdownLevel0Files() {
+        return slowdownLevel0Files;
+    }
+
+    public int stopLevel0Files() {
+        return stopLevel0Files;
+    }
+
+    public long writeStallTimeoutMillis() {
+        return writeStallTimeoutMillis;
+    }
+
+    public long blockCacheBytes() {
+        return blockCacheBytes;
+    }
+
+    public boolean blockCacheOffHeap() {
+        return blockCacheOffHeap;
+    }
+
+    public BlockCodec blockCodec() {
+        return blockCodec;
+    }
+
+    public int multiGetParallelism() {
+        return multiGetParallelism;
+    }
+
+    public long ingestMemoryBytes() {
+        return ingestMemoryBytes;
+    }
+
+    public boolean jmxEnabled() {
+        return jmxEnabled;
+    }
+}
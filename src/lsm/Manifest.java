@@ -0,0 +1,56 @@
+package lsm;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+
+/*
+    MANIFEST names the live SSTs in search order, one file name per line. It is rewritten through a temp file and
+    an atomic rename on every flush or compaction, so any SST file it does not list is a leftover of a crash. The
+    directory is synced after the rename, the new MANIFEST is what a restart reads from then on.
+ */
+class Manifest {
+
+    static final String FILE_NAME = "MANIFEST";
+
+    // null when the data dir predates the manifest
+    static List<String> read(final Path dataDir) throws IOException {
+        return read(dataDir, FILE_NAME);
+    }
+
+    static void write(final Path dataDir, final Collection<String> sstNames) throws IOException {
+        write(dataDir, FILE_NAME, sstNames);
+    }
+
+    // any list of names kept the same way, null when the file does not exist
+    static List<String> read(final Path dir, final String fileName) throws IOException {
+        final Path manifest = dir.resolve(fileName);
+        if (!Files.exists(manifest)) return null;
+        return Files.readAllLines(manifest, StandardCharsets.UTF_8).stream()
+                .filter(line -> !line.isBlank())
+                .toList();
+    }
+
+    static void write(final Path dir, final String fileName, final Collection<String> names) throws IOException {
+        final Path tmpManifest = dir.resolve(fileName + ".tmp");
+        Files.write(tmpManifest, names, StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(tmpManifest, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmpManifest, dir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(dir);
+    }
+
+    // makes the files created, renamed and deleted in dir so far survive a crash, fsync on a file covers its data only
+    static void syncDirectory(final Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
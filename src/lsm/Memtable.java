@@ -0,0 +1,73 @@
+package lsm;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Sorted in-memory buffer paired with the WAL segment holding the same records.
+    Once rotated out it is never written again and waits for the background flusher.
+
+    Every version of a key is kept, ordered key first (MiniLsm.KEY_ORDER) and newest sequence first, so a reader at
+    any sequence finds its version with a single ceiling lookup.
+ */
+class Memtable {
+
+    private final ConcurrentSkipListMap<VersionKey, Cell> entries = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong sizeBytes = new AtomicLong(); //encoded size of the records, not their heap footprint
+
+    final File writeAheadLog;
+
+    Memtable(final File writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    void put(final byte[] key, final Cell cell) {
+        entries.put(new VersionKey(key, cell.sequence()), cell);
+        sizeBytes.addAndGet(MiniLsm.encodedLength(key, cell));
+    }
+
+    long sizeBytes() {
+        return sizeBytes.get();
+    }
+
+    // newest version of key with sequence <= sequence, null if there is none
+    Cell get(final byte[] key, final long sequence) {
+        final Map.Entry<VersionKey, Cell> entry = entries.ceilingEntry(new VersionKey(key, sequence));
+        return entry != null && Arrays.equals(entry.getKey().key(), key) ? entry.getValue() : null;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // every version with startKey <= key < endKey, endKey null runs to the end
+    Iterator<Map.Entry<byte[], Cell>> range(final byte[] startKey, final byte[] endKey) {
+        final VersionKey from = new VersionKey(startKey, Long.MAX_VALUE);
+        final NavigableMap<VersionKey, Cell> range = endKey == null
+                ? entries.tailMap(from, true)
+                : entries.subMap(from, true, new VersionKey(endKey, Long.MAX_VALUE), false);
+        return range.entrySet().stream()
+                .map(entry -> (Map.Entry<byte[], Cell>) new AbstractMap.SimpleImmutableEntry<>(entry.getKey().key(), entry.getValue()))
+                .iterator();
+    }
+
+    Iterator<Map.Entry<byte[], Cell>> iterator() {
+        return range(new byte[0], null);
+    }
+
+    private record VersionKey(byte[] key, long sequence) implements Comparable<VersionKey> {
+
+        @Override
+        public int compareTo(final VersionKey other) {
+            final int comparison = Arrays.compareUnsigned(key, other.key);
+            return comparison != 0 ? comparison : Long.compare(other.sequence, sequence); //newest first
+        }
+    }
+}
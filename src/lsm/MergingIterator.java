@@ -0,0 +1,70 @@
+package lsm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/*
+    K-way merge of sorted sources into key order, newest sequence first within a key. Every version is returned,
+    readers and compaction decide which ones they need. Sources are passed newest first; when several hold the same
+    version (files written before sequence numbers all have sequence 0) only the newest source's copy is returned.
+ */
+class MergingIterator implements Iterator<Map.Entry<byte[], Cell>> {
+
+    private final PriorityQueue<Source> heap = new PriorityQueue<>(MergingIterator::compare);
+
+    MergingIterator(final List<? extends Iterator<Map.Entry<byte[], Cell>>> newestFirst) {
+        for (int rank = 0; rank < newestFirst.size(); rank++) {
+            advance(new Source(rank, newestFirst.get(rank)));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<byte[], Cell> next() {
+        if (heap.isEmpty()) throw new NoSuchElementException();
+        final Source newest = heap.poll();
+        final Map.Entry<byte[], Cell> entry = newest.head;
+        advance(newest);
+        //shadowed copies of the same version in older sources
+        while (!heap.isEmpty()
+                && Arrays.equals(heap.peek().head.getKey(), entry.getKey())
+                && heap.peek().head.getValue().sequence() == entry.getValue().sequence()) {
+            advance(heap.poll());
+        }
+        return entry;
+    }
+
+    // key, then newest version, then newest source
+    private static int compare(final Source a, final Source b) {
+        final int comparison = Arrays.compareUnsigned(a.head.getKey(), b.head.getKey());
+        if (comparison != 0) return comparison;
+        final int versions = Long.compare(b.head.getValue().sequence(), a.head.getValue().sequence());
+        return versions != 0 ? versions : Integer.compare(a.rank, b.rank);
+    }
+
+    private void advance(final Source source) {
+        if (source.iterator.hasNext()) {
+            source.head = source.iterator.next();
+            heap.add(source);
+        }
+    }
+
+    private static final class Source {
+        private final int rank;
+        private final Iterator<Map.Entry<byte[], Cell>> iterator;
+        private Map.Entry<byte[], Cell> head;
+
+        private Source(final int rank, final Iterator<Map.Entry<byte[], Cell>> iterator) {
+            this.rank = rank;
+            this.iterator = iterator;
+        }
+    }
+}
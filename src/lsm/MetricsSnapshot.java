@@ -0,0 +1,44 @@
+package lsm;
+
+/*
+    Point in time copy of a MiniLsm's metrics, see MiniLsm.metrics(). Counters run from when the store was opened,
+    latencies are in nanoseconds and sizes in bytes.
+
+    writeAmplification is bytes written to disk (WAL, flushes, compactions, ingests) per byte of records written;
+    readAmplification is SSTs searched per get, the memtables not counted. writeSlowdowns and writeStops count the
+    writes WriteController delayed or stopped, writeStallLatency how long the stopped ones waited. A compaction
+    failure stops the store taking writes, the next write and close() throw it.
+ */
+public record MetricsSnapshot(
+        long writes,
+        long gets,
+        Histogram.Snapshot writeLatency,
+        Histogram.Snapshot getLatency,
+        Histogram.Snapshot fsyncLatency,
+        Histogram.Snapshot flushLatency,
+        Histogram.Snapshot compactionLatency,
+        Histogram.Snapshot sstProbesPerGet,
+        long userBytesWritten,
+        long walBytesWritten,
+        long walGroupCommits,
+        long flushBytesWritten,
+        long compactionBytesRead,
+        long compactionBytesWritten,
+        long compactionFailures,
+        long ingestBytesWritten,
+        double writeAmplification,
+        double readAmplification,
+        long memtableBytes,
+        int immutableMemtables,
+        long walSegmentBytes,
+        int sstCount,
+        long sstBytes,
+        long bloomFilterHits,
+        long bloomFilterFalsePositives,
+        long blockCacheHits,
+        long blockCacheMisses,
+        long blockCacheEvictions,
+        long writeSlowdowns,
+        long writeStops,
+        Histogram.Snapshot writeStallLatency) {
+}
@@ -0,0 +1,1042 @@
+package lsm;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+    Keys and values are byte arrays, keys ordered by KEY_ORDER. The String methods are thin wrappers that store the
+    UTF-8 bytes. Arrays passed to put, delete or a WriteBatch are kept as they are, not copied, and arrays returned by
+    get or a scan can be shared with the memtable: neither may be modified afterwards.
+ */
+public final class MiniLsm implements Closeable {
+
+    // unsigned lexicographic order of key bytes, which for UTF-8 keys is code point order
+    public static final Comparator<byte[]> KEY_ORDER = Arrays::compareUnsigned;
+
+    private static final int WAL_FLUSH_THRESHOLD = 4 * 1024 * 1024; //4MB
+
+    static final int INDEX_ITEM_DISTANCE = 4 * 1024; //4KB
+
+    private static final String WAL_SEGMENT_PREFIX = "wal-";
+
+    final Path dataDir;
+
+    //active memtable plus the rotated ones still waiting to be flushed, swapped as a whole so readers see one view
+    final AtomicReference<Memtables> memtables = new AtomicReference<>();
+
+    //search order, latest files first. Immutable, replaced as a whole on every flush or compaction
+    volatile SortedMap<String, SsTable> sstIndices;
+
+    final WriteAheadLog wal;
+
+    /*
+        Writers share the read lock so their records can be group committed together. Rotating the memtable
+        takes the write lock so every acknowledged record is in the memtable paired with its WAL segment.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //single thread so SSTs are written oldest memtable first
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor();
+
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor();
+
+    private final ExecutorService multiGetExecutor; //null when multiGet searches SSTs one after another
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    private final Compactor compactor;
+
+    private final WriteController writeController;
+
+    private final IoThrottle flushThrottle; //flush thread only
+
+    private final AtomicInteger level0Files = new AtomicInteger(); //level 0 SSTs in sstIndices, what write stalls watch
+
+    private final AtomicLong lastSstId = new AtomicLong();
+
+    private final int bloomBitsPerKey;
+
+    private final BlockCache blockCache; //null when disabled
+
+    private final BlockCodec blockCodec; //compression for new SST blocks, null stores them uncompressed
+
+    private final long ingestMemoryBytes;
+
+    private final long targetFileSizeBytes;
+
+    final LsmMetrics metrics = new LsmMetrics();
+
+    private final ObjectName mxBeanName; //null unless registered with JMX
+
+    private long nextWalSegment;
+
+    //writers take the next sequence and enqueue their WAL record in one step, so the log is in sequence order
+    private final Object sequenceLock = new Object();
+
+    private long lastSequence; //guarded by sequenceLock
+
+    private volatile long visibleSequence; //every write up to here is in the memtables, readers see no further
+
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>(); //sequence -> open handles
+
+    private final TreeSet<Long> ingestsInFlight = new TreeSet<>(); //sequences of ingests not installed yet, guarded by openSnapshots
+
+    private volatile IOException backgroundError;
+
+    private volatile boolean closing;
+
+
+    public MiniLsm(final Path dataDir) throws IOException {
+        this(dataDir, new LsmOptions());
+    }
+
+    public MiniLsm(final Path dataDir, final LsmOptions options) throws IOException {
+        this.dataDir = Files.createDirectories(dataDir);
+        this.bloomBitsPerKey = options.bloomBitsPerKey();
+        this.blockCodec = options.blockCodec();
+        this.ingestMemoryBytes = options.ingestMemoryBytes();
+        this.targetFileSizeBytes = options.targetFileSizeBytes();
+        if (blockCodec != null) Block.registerCodec(blockCodec); //before any table using it is opened
+        this.blockCache = options.blockCacheBytes() > 0 ? new BlockCache(options.blockCacheBytes(), options.blockCacheOffHeap()) : null;
+        this.multiGetExecutor = options.multiGetParallelism() > 1 ? Executors.newFixedThreadPool(options.multiGetParallelism()) : null;
+        this.sstIndices = buildAllSparseIndices();
+        this.level0Files.set(countLevel0(sstIndices));
+        this.flushThrottle = new IoThrottle(options.flushBytesPerSecond());
+        this.writeController = new WriteController(memtables, level0Files, metrics, options);
+        this.compactor = new Compactor(this, options);
+        final List<Memtable> recovered = buildMemtables();
+        for (SsTable sst : sstIndices.values()) {
+            lastSequence = Math.max(lastSequence, sst.maxSequence);
+        }
+        this.visibleSequence = lastSequence;
+        final Memtable active = new Memtable(getWriteAheadLogFile(nextWalSegment++));
+        this.memtables.set(new Memtables(active, recovered));
+        this.wal = new WriteAheadLog(active.writeAheadLog, options.durability(), options.syncIntervalMillis(), metrics);
+        for (Memtable memtable : recovered.reversed()) {
+            scheduleFlush(memtable);
+        }
+        scheduleCompaction();
+        this.mxBeanName = options.jmxEnabled() ? registerMXBean() : null;
+    }
+
+    public void put(String key, String value) throws IOException {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void put(final String key, final String value, final Duration ttl) throws IOException {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), ttl);
+    }
+
+    public void delete(final String key) throws IOException {
+        delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void put(final byte[] key, final byte[] value) throws IOException {
+        write(key, Cell.of(value));
+    }
+
+    // value disappears from reads once ttl has passed, compaction reclaims the space later
+    public void put(final byte[] key, final byte[] value, final Duration ttl) throws IOException {
+        write(key, new Cell(value, System.currentTimeMillis() + ttl.toMillis(), 0));
+    }
+
+    // stores the remaining bytes of both buffers, their positions are left as they are
+    public void put(final ByteBuffer key, final ByteBuffer value) throws IOException {
+        put(remaining(key), remaining(value));
+    }
+
+    public void delete(final byte[] key) throws IOException {
+        write(key, Cell.TOMBSTONE);
+    }
+
+    // all or nothing: one WAL frame and one fsync, one sequence number so readers see the whole batch or none of it
+    public void write(final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) return;
+        commit(batch::frame, batch::applyTo, batch.payloadBytes());
+    }
+
+    /*
+        Loads unsorted records straight into SSTs, bypassing the WAL and memtables: they are sorted externally in
+        runs of ingestMemoryBytes (see BulkLoader) and the merged result is written as tables that one manifest
+        update registers. The records form a single write newer than everything before it and older than every write
+        after it started, of several records with the same key the last one wins. The write lock is only taken to
+        pick the ingest's sequence, flushing the memtables older than it in the background, and to install the
+        tables, reads and writes carry on while they are sorted and written.
+     */
+    public void ingest(final Iterator<? extends Map.Entry<byte[], byte[]>> records) throws IOException {
+        try (BulkLoader loader = new BulkLoader(dataDir.resolve(BulkLoader.RUNS_DIR).resolve(Long.toString(nextSstId())), ingestMemoryBytes)) {
+            loader.sort(records);
+            if (loader.isEmpty()) return;
+            final long sequence;
+            final Future<Long> tableSeq; //orders the tables in level 0, unrelated to the write sequence
+            lock.writeLock().lock();
+            try {
+                if (!memtables.get().active().isEmpty()) {
+                    swapMemtable();
+                }
+                //behind the flush of every older memtable and ahead of any newer one, so level 0 orders them right
+                tableSeq = flushExecutor.submit(this::nextSstId);
+                synchronized (sequenceLock) {
+                    sequence = ++lastSequence;
+                }
+                synchronized (openSnapshots) {
+                    //as a snapshot just below the ingest, flushes and compactions keep the newer tombstones it needs
+                    openSnapshots.merge(sequence - 1, 1, Integer::sum);
+                    ingestsInFlight.add(sequence);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                installIngested(loader, sequence, awaitFlushes(tableSeq));
+            } finally {
+                synchronized (openSnapshots) {
+                    ingestsInFlight.remove(sequence);
+                }
+                releaseSnapshot(sequence - 1);
+            }
+        }
+        scheduleCompaction();
+    }
+
+    private void installIngested(final BulkLoader loader, final long sequence, final long tableSeq) throws IOException {
+        //above every table holding an older version of the range, as deep as that allows
+        int level = compactor.ingestLevel(loader.minKey(), loader.maxKey());
+        while (true) {
+            final List<SsTable> ingested = writeIngested(loader.merged(), level, sequence, tableSeq);
+            lock.writeLock().lock();
+            try {
+                if (replaceSsTablesUnlessOverlapped(level, loader.minKey(), loader.maxKey(), ingested)) {
+                    visibleSequence = Math.max(visibleSequence, sequence);
+                    metrics.userBytesWritten.add(loader.inputBytes());
+                    metrics.ingestBytesWritten.add(ingested.stream().mapToLong(sst -> sst.sizeBytes).sum());
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            //a compaction moved a table into the range meanwhile, level 0 is the one level allowed to overlap
+            ingested.forEach(SsTable::release);
+            level = 0;
+        }
+    }
+
+    // false, installing nothing, if a table in level overlaps the range now
+    private synchronized boolean replaceSsTablesUnlessOverlapped(final int level, final byte[] minKey, final byte[] maxKey, final List<SsTable> ingested) throws IOException {
+        if (level > 0 && sstIndices.values().stream().anyMatch(sst -> sst.level == level && sst.overlaps(minKey, maxKey))) {
+            return false;
+        }
+        replaceSsTables(List.of(), ingested);
+        return true;
+    }
+
+    private List<SsTable> writeIngested(final Iterator<Map.Entry<byte[], Cell>> merged, final int level, final long sequence, final long tableSeq) throws IOException {
+        final long targetFileSize = level == 0 ? Long.MAX_VALUE : targetFileSizeBytes;
+        final List<SsTable> outputs = new ArrayList<>();
+        SsTableWriter writer = null;
+        try {
+            while (merged.hasNext()) {
+                final Map.Entry<byte[], Cell> entry = merged.next();
+                if (writer != null && writer.size() >= targetFileSize) {
+                    outputs.add(writer.finish());
+                    writer.close();
+                    writer = null;
+                }
+                if (writer == null) {
+                    writer = newSsTableWriter(level, tableSeq, IoThrottle.UNLIMITED);
+                }
+                writer.add(entry.getKey(), entry.getValue().withSequence(sequence));
+            }
+            outputs.add(writer.finish());
+            return outputs;
+        } catch (IOException | RuntimeException e) {
+            outputs.forEach(SsTable::release);
+            throw e;
+        } finally {
+            if (writer != null) writer.close();
+        }
+    }
+
+    void write(final byte[] key, final Cell cell) throws IOException {
+        commit(sequence -> WriteAheadLog.record(key, cell.withSequence(sequence)), (memtable, sequence) -> memtable.put(key, cell.withSequence(sequence)),
+                encodedLength(key, cell));
+    }
+
+    private void commit(final LongFunction<WriteAheadLog.Record> encoder, final ObjLongConsumer<Memtable> apply, final int userBytes) throws IOException {
+        if (backgroundError != null) {
+            throw new IOException("Background flush or compaction failed", backgroundError);
+        }
+        final long start = System.nanoTime();
+        writeController.awaitCapacity();
+        lock.readLock().lock();
+        try {
+            final CompletableFuture<Void> commit;
+            synchronized (sequenceLock) {
+                final long sequence = lastSequence + 1;
+                //the WAL writer applies records in log order, so visibleSequence only moves past fully applied writes
+                commit = wal.append(encoder.apply(sequence), () -> {
+                    apply.accept(memtables.get().active(), sequence);
+                    visibleSequence = sequence;
+                });
+                lastSequence = sequence;
+            }
+            awaitCommit(commit); //returns once the group holding this record is written and applied
+        } finally {
+            lock.readLock().unlock();
+        }
+        metrics.writeLatency.recordSince(start);
+        metrics.writes.increment();
+        metrics.userBytesWritten.add(userBytes);
+
+        if (wal.size() >= WAL_FLUSH_THRESHOLD) {
+            rotateMemtable();
+        }
+    }
+
+    public String get(String key) throws IOException {
+        final byte[] value = get(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public byte[] get(final byte[] key) throws IOException {
+        //memtables are read at the visible sequence so a half applied batch stays hidden, SSTs only hold visible writes
+        return get(key, visibleSequence, Long.MAX_VALUE);
+    }
+
+    // read only view of the value, null if absent. The key's remaining bytes are looked up, its position is left as is
+    public ByteBuffer get(final ByteBuffer key) throws IOException {
+        final byte[] value = get(remaining(key));
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    byte[] get(final byte[] key, final long memtableSequence, final long sstSequence) {
+        final long start = System.nanoTime();
+        final Cell cell = liveCell(key, memtableSequence, sstSequence);
+        metrics.getLatency.recordSince(start);
+        metrics.gets.increment();
+        return cell != null ? cell.value() : null;
+    }
+
+    // newest version of key with its expiry, null when the key is absent, deleted or expired
+    Cell liveCell(final byte[] key) {
+        return liveCell(key, visibleSequence, Long.MAX_VALUE);
+    }
+
+    // newest version of key as it is stored, tombstones and expired values included, null when there is none
+    Cell newestVersion(final byte[] key) {
+        return find(key, visibleSequence, Long.MAX_VALUE);
+    }
+
+    // every write with a higher sequence is newer than anything in the store now
+    long lastSequence() {
+        synchronized (sequenceLock) {
+            return lastSequence;
+        }
+    }
+
+    private Cell liveCell(final byte[] key, final long memtableSequence, final long sstSequence) {
+        final Cell cell = find(key, memtableSequence, sstSequence);
+        //the newest version decides, a tombstone or expired value hides anything older
+        return cell != null && cell.isLive(System.currentTimeMillis()) ? cell : null;
+    }
+
+    private Cell find(final byte[] key, final long memtableSequence, final long sstSequence) {
+        final Cell memtableResult = searchMemtables(memtables.get(), key, memtableSequence);
+        return memtableResult != null ? memtableResult : searchSsTables(key, sstSequence);
+    }
+
+    private static Cell searchMemtables(final Memtables current, final byte[] key, final long sequence) {
+        final Cell memtableResult = current.active().get(key, sequence);
+        if (memtableResult != null) {
+            return memtableResult;
+        }
+        for (Memtable immutable : current.immutables()) {
+            final Cell immutableResult = immutable.get(key, sequence);
+            if (immutableResult != null) {
+                return immutableResult;
+            }
+        }
+        return null;
+    }
+
+    // values of the keys found, absent keys are left out
+    public Map<String, String> multiGet(final Collection<String> keys) throws IOException {
+        final List<byte[]> keyBytes = keys.stream().map(key -> key.getBytes(StandardCharsets.UTF_8)).toList();
+        final List<byte[]> values = multiGet(keyBytes);
+        final Map<String, String> result = new HashMap<>();
+        int i = 0;
+        for (String key : keys) {
+            final byte[] value = values.get(i++);
+            if (value != null) result.put(key, new String(value, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    // value of each key in the same position, null where absent
+    public List<byte[]> multiGet(final List<byte[]> keys) throws IOException {
+        return multiGet(keys, visibleSequence, Long.MAX_VALUE);
+    }
+
+    /*
+        Keys the memtables do not answer are sorted and looked up table by table, newest first, each table reading
+        the blocks its keys fall in once and in file order. With multiGetParallelism above 1 the tables are searched
+        at the same time instead and the newest answer per key wins, trading extra block reads for latency. Each key
+        counts as a get that took as long as the whole batch, so metrics look the same as for one get per key.
+     */
+    List<byte[]> multiGet(final List<byte[]> keys, final long memtableSequence, final long sstSequence) {
+        final long start = System.nanoTime();
+        final Memtables current = memtables.get();
+        final Cell[] cells = new Cell[keys.size()];
+        final TreeMap<byte[], Cell> pending = new TreeMap<>(KEY_ORDER); //ascending and deduplicated, null until found
+        for (int i = 0; i < keys.size(); i++) {
+            cells[i] = searchMemtables(current, keys.get(i), memtableSequence);
+            if (cells[i] == null) pending.put(keys.get(i), null);
+        }
+        if (!pending.isEmpty()) {
+            final List<byte[]> sortedKeys = new ArrayList<>(pending.keySet());
+            final Cell[] found = searchSsTables(sortedKeys, sstSequence);
+            for (int i = 0; i < found.length; i++) {
+                pending.put(sortedKeys.get(i), found[i]);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<byte[]> values = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final Cell cell = cells[i] != null ? cells[i] : pending.get(keys.get(i));
+            values.add(cell != null && cell.isLive(now) ? cell.value() : null);
+        }
+        final long latency = System.nanoTime() - start;
+        for (int i = 0; i < keys.size(); i++) {
+            metrics.getLatency.record(latency);
+        }
+        metrics.gets.add(keys.size());
+        return values;
+    }
+
+    // consistent view as of now, until closed compaction keeps every version it can see
+    public Snapshot snapshot() {
+        synchronized (openSnapshots) {
+            //an ingest in flight lands after later writes are visible, stopping short of it keeps the view fixed
+            return openSnapshot(ingestsInFlight.isEmpty() ? visibleSequence : Math.min(visibleSequence, ingestsInFlight.first() - 1));
+        }
+    }
+
+    private Snapshot openSnapshot(final long sequence) {
+        synchronized (openSnapshots) {
+            openSnapshots.merge(sequence, 1, Integer::sum);
+            return new Snapshot(this, sequence);
+        }
+    }
+
+    void releaseSnapshot(final long sequence) {
+        synchronized (openSnapshots) {
+            openSnapshots.computeIfPresent(sequence, (snapshot, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    // ascending. A snapshot opened after this call sees at least every write already in an SST or immutable memtable
+    long[] liveSnapshots() {
+        synchronized (openSnapshots) {
+            return openSnapshots.keySet().stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    // entries with startKey <= key < endKey in key order, endKey null scans to the end
+    public ScanIterator scan(final String startKey, final String endKey) throws IOException {
+        return new ScanIterator(scan(startKey.getBytes(StandardCharsets.UTF_8), endKey == null ? null : endKey.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public BinaryScanIterator scan(final byte[] startKey, final byte[] endKey) throws IOException {
+        //held while the scan pins its tables, so compaction cannot drop a version the scan is about to read
+        try (Snapshot snapshot = openSnapshot(visibleSequence)) {
+            return scan(startKey, endKey, snapshot.sequence());
+        }
+    }
+
+    BinaryScanIterator scan(final byte[] startKey, final byte[] endKey, final long sequence) throws IOException {
+        final Memtables current = memtables.get();
+        final List<Iterator<Map.Entry<byte[], Cell>>> sources = new ArrayList<>();
+        sources.add(current.active().range(startKey, endKey));
+        for (Memtable immutable : current.immutables()) {
+            sources.add(immutable.range(startKey, endKey));
+        }
+
+        final List<SsTable> pinnedTables = pinSsTables(startKey, endKey);
+        for (SsTable sst : pinnedTables) {
+            //start at the block that would hold startKey and stream forward from there
+            sources.add(BinaryScanIterator.bounded(new SsTableIterator(sst, sst.floorBlock(startKey)), startKey, endKey));
+        }
+        return new BinaryScanIterator(sources, pinnedTables, sequence);
+    }
+
+    public ScanIterator prefixScan(final String prefix) throws IOException {
+        return new ScanIterator(prefixScan(prefix.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public BinaryScanIterator prefixScan(final byte[] prefix) throws IOException {
+        return scan(prefix, prefixEnd(prefix));
+    }
+
+    BinaryScanIterator prefixScan(final byte[] prefix, final long sequence) throws IOException {
+        return scan(prefix, prefixEnd(prefix), sequence);
+    }
+
+    // smallest key greater than every key starting with prefix, null if there is none
+    private static byte[] prefixEnd(final byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                final byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        return null;
+    }
+
+    // newest first, every returned table is acquired and must be released by the caller
+    private List<SsTable> pinSsTables(final byte[] startKey, final byte[] endKey) {
+        retry:
+        while (true) {
+            final List<SsTable> pinned = new ArrayList<>();
+            for (SsTable sst : sstIndices.values()) {
+                if (KEY_ORDER.compare(sst.maxKey, startKey) < 0 || (endKey != null && KEY_ORDER.compare(sst.minKey, endKey) >= 0)) continue;
+                if (!sst.tryAcquire()) {
+                    pinned.forEach(SsTable::release);
+                    continue retry;
+                }
+                pinned.add(sst);
+            }
+            return pinned;
+        }
+    }
+
+    // counters since open plus the current memtable, WAL and SST sizes
+    public MetricsSnapshot metrics() {
+        final Memtables current = memtables.get();
+        long memtableBytes = current.active().sizeBytes();
+        for (Memtable immutable : current.immutables()) {
+            memtableBytes += immutable.sizeBytes();
+        }
+        final SortedMap<String, SsTable> tables = sstIndices;
+        final long sstBytes = tables.values().stream().mapToLong(sst -> sst.sizeBytes).sum();
+        final long userBytes = metrics.userBytesWritten.sum();
+        final long gets = metrics.gets.sum();
+        return new MetricsSnapshot(
+                metrics.writes.sum(),
+                gets,
+                metrics.writeLatency.snapshot(),
+                metrics.getLatency.snapshot(),
+                metrics.fsyncLatency.snapshot(),
+                metrics.flushLatency.snapshot(),
+                metrics.compactionLatency.snapshot(),
+                metrics.sstProbesPerGet.snapshot(),
+                userBytes,
+                metrics.walBytesWritten.sum(),
+                metrics.walGroups.sum(),
+                metrics.flushBytesWritten.sum(),
+                metrics.compactionBytesRead.sum(),
+                metrics.compactionBytesWritten.sum(),
+                metrics.compactionFailures.sum(),
+                metrics.ingestBytesWritten.sum(),
+                userBytes == 0 ? 0 : (double) metrics.bytesWrittenToDisk() / userBytes,
+                gets == 0 ? 0 : (double) metrics.sstProbes.sum() / gets,
+                memtableBytes,
+                current.immutables().size(),
+                wal.size(),
+                tables.size(),
+                sstBytes,
+                metrics.bloomFilterHits.sum(),
+                metrics.bloomFilterFalsePositives.sum(),
+                blockCacheHits(),
+                blockCacheMisses(),
+                blockCacheEvictions(),
+                metrics.writeSlowdowns.sum(),
+                metrics.writeStops.sum(),
+                metrics.writeStallLatency.snapshot());
+    }
+
+    private ObjectName registerMXBean() throws IOException {
+        try {
+            final ObjectName name = new ObjectName("MiniLsm:type=MiniLsm,dir=" + ObjectName.quote(dataDir.toString()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new LsmMetrics.MXBean(this::metrics), name);
+            return name;
+        } catch (JMException e) {
+            throw new IOException("Cannot register metrics with JMX", e);
+        }
+    }
+
+    public long bloomFilterHits() {
+        return metrics.bloomFilterHits.sum();
+    }
+
+    public long bloomFilterFalsePositives() {
+        return metrics.bloomFilterFalsePositives.sum();
+    }
+
+    public long blockCacheHits() {
+        return blockCache == null ? 0 : blockCache.hits();
+    }
+
+    public long blockCacheMisses() {
+        return blockCache == null ? 0 : blockCache.misses();
+    }
+
+    public long blockCacheEvictions() {
+        return blockCache == null ? 0 : blockCache.evictions();
+    }
+
+    // waits for pending flushes, a running compaction stops at the next file boundary
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        writeController.close();
+        IOException walError = null;
+        try {
+            wal.close();
+        } catch (IOException e) {
+            walError = e; //still shut down the rest
+        }
+        awaitShutdown(flushExecutor);
+        awaitShutdown(compactionExecutor);
+        if (multiGetExecutor != null) multiGetExecutor.shutdown();
+        if (mxBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mxBeanName);
+            } catch (JMException ignored) {
+                //unregistered from outside already
+            }
+        }
+        if (walError != null) {
+            throw walError;
+        }
+        if (backgroundError != null) {
+            throw new IOException("Background flush or compaction failed", backgroundError);
+        }
+    }
+
+    boolean isClosing() {
+        return closing;
+    }
+
+    private static void awaitShutdown(final ExecutorService executorService) {
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Cell searchSsTables(final byte[] key, final long sequence) {
+        int probes = 0;
+        retry:
+        while (true) {
+            for (SsTable sst : sstIndices.values()) {
+                if (!sst.covers(key)) continue;
+                final BloomFilter bloomFilter = sst.bloomFilter;
+                if (bloomFilter != null && !bloomFilter.mightContain(key)) {
+                    metrics.bloomFilterHits.increment();
+                    continue;
+                }
+                if (!sst.tryAcquire()) {
+                    continue retry; //compacted away since we read sstIndices, its data is in the newer view
+                }
+                probes++;
+                try {
+                    final Cell searchResult = sst.get(key, sequence, blockCache);
+                    if (searchResult != null) {
+                        recordProbes(probes);
+                        return searchResult;
+                    }
+                } finally {
+                    sst.release();
+                }
+                if (bloomFilter != null) metrics.bloomFilterFalsePositives.increment();
+            }
+            recordProbes(probes);
+            return null;
+        }
+    }
+
+    private void recordProbes(final int probes) {
+        metrics.sstProbes.add(probes);
+        metrics.sstProbesPerGet.record(probes);
+    }
+
+    // keys ascending and distinct, found[i] is the newest version of keys.get(i) in any SST
+    private Cell[] searchSsTables(final List<byte[]> keys, final long sequence) {
+        final List<SsTable> pinned = pinSsTables(keys.getFirst(), Arrays.copyOf(keys.getLast(), keys.getLast().length + 1));
+        final AtomicIntegerArray probes = new AtomicIntegerArray(keys.size()); //tables searched per key
+        try {
+            final Cell[] found = new Cell[keys.size()];
+            if (multiGetExecutor == null || pinned.size() < 2) {
+                for (SsTable sst : pinned) {
+                    searchSsTable(sst, keys, sequence, found, found, probes);
+                }
+            } else {
+                final List<Future<Cell[]>> perTable = new ArrayList<>();
+                for (SsTable sst : pinned) {
+                    perTable.add(multiGetExecutor.submit(() -> searchSsTable(sst, keys, sequence, null, new Cell[keys.size()], probes)));
+                }
+                for (Future<Cell[]> tableResult : perTable) { //newest table first, its versions win
+                    final Cell[] tableCells = tableResult.get();
+                    for (int i = 0; i < found.length; i++) {
+                        if (found[i] == null) found[i] = tableCells[i];
+                    }
+                }
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                recordProbes(probes.get(i));
+            }
+            return found;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+            throw new CompletionException(e.getCause());
+        } finally {
+            pinned.forEach(SsTable::release);
+        }
+    }
+
+    // fills into[i] for the keys sst may hold, skipping keys already resolved in skip (null searches every key)
+    private Cell[] searchSsTable(final SsTable sst, final List<byte[]> keys, final long sequence, final Cell[] skip, final Cell[] into,
+                                 final AtomicIntegerArray probes) {
+        final List<byte[]> candidates = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if ((skip != null && skip[i] != null) || !sst.covers(keys.get(i))) continue;
+            if (sst.bloomFilter != null && !sst.bloomFilter.mightContain(keys.get(i))) {
+                metrics.bloomFilterHits.increment();
+                continue;
+            }
+            candidates.add(keys.get(i));
+            positions.add(i);
+            probes.incrementAndGet(i);
+        }
+        if (candidates.isEmpty()) return into;
+        final Cell[] cells = sst.get(candidates, sequence, blockCache);
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != null) {
+                into[positions.get(i)] = cells[i];
+            } else if (sst.bloomFilter != null) {
+                metrics.bloomFilterFalsePositives.increment();
+            }
+        }
+        return into;
+    }
+
+    private static void awaitCommit(final CompletableFuture<Void> commit) throws IOException {
+        try {
+            commit.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) throw ioException;
+            throw e;
+        }
+    }
+
+    // swap in a fresh memtable and WAL segment, the full one is flushed in the background
+    private void rotateMemtable() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (wal.size() < WAL_FLUSH_THRESHOLD) return; //another writer rotated already
+            swapMemtable();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // writes the active memtable to an SST and returns once it and every older memtable are flushed
+    void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!memtables.get().active().isEmpty()) {
+                swapMemtable();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        awaitFlushes(flushExecutor.submit(() -> null));
+    }
+
+    // caller holds the write lock
+    private void swapMemtable() throws IOException {
+        final Memtables current = memtables.get();
+        final Memtable next = new Memtable(getWriteAheadLogFile(nextWalSegment++));
+        wal.roll(next.writeAheadLog);
+        final List<Memtable> immutables = new ArrayList<>();
+        immutables.add(current.active());
+        immutables.addAll(current.immutables());
+        memtables.set(new Memtables(next, immutables));
+        scheduleFlush(current.active());
+    }
+
+    // result of a task queued on the flush thread, once every flush ahead of it is done
+    private <T> T awaitFlushes(final Future<T> task) throws IOException {
+        final T result;
+        try {
+            result = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for flushes");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (backgroundError != null) {
+            throw new IOException("Background flush or compaction failed", backgroundError);
+        }
+        return result;
+    }
+
+    private void scheduleFlush(final Memtable immutable) {
+        flushExecutor.execute(() -> {
+            try {
+                flushMemtable(immutable);
+            } catch (IOException e) {
+                //memtable stays readable and its WAL segment is kept for recovery
+                backgroundError = e;
+            }
+        });
+    }
+
+    /*
+        Flush an immutable memtable as sorted string table file, keeping the versions live snapshots need. Older
+        memtables are flushed already, so a tombstone or expired value whose key no SST can hold has nothing left to
+        hide and is dropped here.
+     */
+    private void flushMemtable(final Memtable immutable) throws IOException {
+        final long start = System.nanoTime();
+        SsTable sst = null;
+        if (!immutable.isEmpty()) {
+            final long id = nextSstId();
+            final VersionFilter versions = new VersionFilter(immutable.iterator(), liveSnapshots(), sstIndices.values(), System.currentTimeMillis());
+            try (final SsTableWriter writer = new SsTableWriter(dataDir.resolve(SsTable.fileName(0, id, id)).toFile(), bloomBitsPerKey, blockCodec, flushThrottle)) {
+                while (versions.hasNext()) {
+                    final Map.Entry<byte[], Cell> entry = versions.next();
+                    writer.add(entry.getKey(), entry.getValue());
+                }
+                if (!writer.isEmpty()) {
+                    sst = writer.finish(); //durable before the WAL segment goes away
+                }
+            }
+        }
+        if (sst != null) {
+            //publish the SST before dropping the memtable so readers never miss the data
+            try {
+                replaceSsTables(List.of(), List.of(sst));
+            } catch (IOException e) {
+                sst.release();
+                throw e;
+            }
+        }
+        memtables.updateAndGet(current -> current.without(immutable));
+        writeController.onProgress();
+        WriteAheadLog.delete(immutable.writeAheadLog);
+        metrics.flushLatency.recordSince(start);
+        metrics.flushes.increment();
+        if (sst != null) metrics.flushBytesWritten.add(sst.sizeBytes);
+        scheduleCompaction();
+    }
+
+    SsTableWriter newSsTableWriter(final int level, final long tableSeq, final IoThrottle ioThrottle) throws IOException {
+        return new SsTableWriter(dataDir.resolve(SsTable.fileName(level, tableSeq, nextSstId())).toFile(), bloomBitsPerKey, blockCodec, ioThrottle);
+    }
+
+    /*
+        Swap compaction inputs for outputs in one step. The manifest commits the swap, readers see it after that
+        and inputs are deleted once the last reader lets go.
+     */
+    synchronized void replaceSsTables(final List<SsTable> removed, final List<SsTable> added) throws IOException {
+        final SortedMap<String, SsTable> next = new TreeMap<>(SsTable.SEARCH_ORDER);
+        next.putAll(sstIndices);
+        removed.forEach(sst -> next.remove(sst.file.getName()));
+        added.forEach(sst -> next.put(sst.file.getName(), sst));
+        Manifest.write(dataDir, next.keySet());
+        sstIndices = Collections.unmodifiableSortedMap(next);
+        level0Files.set(countLevel0(next));
+        writeController.onProgress();
+        removed.forEach(SsTable::release);
+    }
+
+    private static int countLevel0(final SortedMap<String, SsTable> tables) {
+        return (int) tables.values().stream().filter(sst -> sst.level == 0).count();
+    }
+
+    private void scheduleCompaction() {
+        if (closing || !compactionScheduled.compareAndSet(false, true)) return;
+        compactionExecutor.execute(() -> {
+            try {
+                compactor.compact();
+            } catch (IOException e) {
+                failCompaction(e);
+            } catch (UncheckedIOException e) {
+                failCompaction(e.getCause());
+            } finally {
+                compactionScheduled.set(false);
+            }
+        });
+    }
+
+    // inputs are untouched, but the store takes no more writes: the next one or close() reports the failure
+    private void failCompaction(final IOException e) {
+        metrics.compactionFailures.increment();
+        backgroundError = e;
+    }
+
+    private long nextSstId() {
+        return lastSstId.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
+
+    // key length + key + cell (val length + val for plain values), the layout every reader expects
+    static void encode(final ByteBuffer bb, final byte[] keyBytes, final Cell cell) {
+        bb.putInt(keyBytes.length);
+        bb.put(keyBytes);
+        Cell.encode(bb, cell);
+    }
+
+    static int encodedLength(final byte[] keyBytes, final Cell cell) {
+        return 4 + keyBytes.length + Cell.encodedLength(cell);
+    }
+
+    private static byte[] remaining(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), bytes);
+        return bytes;
+    }
+
+    private File getWriteAheadLogFile(final long segment) {
+        return this.dataDir.resolve(WAL_SEGMENT_PREFIX + segment + ".log").toFile();
+    }
+
+
+    // opens the tables named by the manifest, reading only their footers and in parallel
+    private SortedMap<String, SsTable> buildAllSparseIndices() throws IOException {
+        final List<String> allSstNames;
+        try (Stream<Path> files = Files.list(dataDir)) {
+            allSstNames = new ArrayList<>();
+            for (Path file : files.toList()) {
+                final String fileName = file.getFileName().toString();
+                if (fileName.endsWith(".tmp") && Files.isRegularFile(file)) {
+                    Files.delete(file); //unfinished flush, compaction or manifest output
+                } else if (fileName.equals(BulkLoader.RUNS_DIR) && Files.isDirectory(file)) {
+                    BulkLoader.deleteAbandonedRuns(file); //runs of ingests that never finished
+                } else if (SsTable.isSstFile(fileName)) {
+                    allSstNames.add(fileName);
+                    lastSstId.accumulateAndGet(SsTable.id(fileName), Math::max);
+                }
+            }
+        }
+
+        final List<String> manifest = Manifest.read(dataDir);
+        final List<String> liveSstNames = manifest == null ? allSstNames : manifest;
+        final SortedMap<String, SsTable> sparseIndices = new TreeMap<>(SsTable.SEARCH_ORDER);
+        liveSstNames.parallelStream()
+                .map(fileName -> {
+                    try {
+                        return SsTable.open(dataDir.resolve(fileName).toFile());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .toList()
+                .forEach(sst -> sparseIndices.put(sst.file.getName(), sst));
+
+        if (manifest == null) {
+            Manifest.write(dataDir, sparseIndices.keySet());
+        } else {
+            //written by a flush or compaction that crashed before the manifest named them, or already replaced
+            for (String fileName : allSstNames) {
+                if (!sparseIndices.containsKey(fileName)) {
+                    Files.deleteIfExists(dataDir.resolve(fileName));
+                    Files.deleteIfExists(SsTable.filterFile(dataDir.resolve(fileName).toFile()).toPath());
+                }
+            }
+        }
+        return Collections.unmodifiableSortedMap(sparseIndices);
+    }
+
+    //replays every WAL segment left behind in parallel, one memtable each, newest first to match the memtables order
+    private List<Memtable> buildMemtables() throws IOException {
+        final List<File> segments = new ArrayList<>();
+        final File legacyWal = this.dataDir.resolve("write_head.log").toFile();
+        if (legacyWal.exists()) segments.add(legacyWal);
+        try (Stream<Path> files = Files.list(dataDir)) {
+            files.filter(file -> file.getFileName().toString().startsWith(WAL_SEGMENT_PREFIX) && Files.isRegularFile(file))
+                    .map(Path::toFile)
+                    .sorted(Comparator.comparingLong(MiniLsm::walSegmentNumber))
+                    .forEach(segments::add);
+        }
+
+        for (File segment : segments) {
+            if (segment != legacyWal) nextWalSegment = Math.max(nextWalSegment, walSegmentNumber(segment) + 1);
+        }
+        final AtomicLong maxSequence = new AtomicLong(lastSequence);
+        final List<Memtable> oldestFirst = segments.parallelStream()
+                .map(segment -> {
+                    final Memtable memtable = new Memtable(segment);
+                    try {
+                        maxSequence.accumulateAndGet(WriteAheadLog.replay(segment, memtable), Math::max);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return memtable;
+                })
+                .toList();
+        lastSequence = maxSequence.get();
+        return oldestFirst.reversed();
+    }
+
+    private static long walSegmentNumber(final File segment) {
+        final String name = segment.getName();
+        return Long.parseLong(name.substring(WAL_SEGMENT_PREFIX.length(), name.length() - ".log".length()));
+    }
+
+    record Memtables(Memtable active, List<Memtable> immutables) {
+
+        Memtables without(final Memtable flushed) {
+            final List<Memtable> remaining = new ArrayList<>(immutables);
+            remaining.remove(flushed);
+            return new Memtables(active, remaining);
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package lsm;
+
+/*
+    JMX view of MiniLsm.metrics(), registered as MiniLsm:type=MiniLsm,dir=<data dir> when LsmOptions.jmxEnabled is
+    set. Every attribute read takes a fresh snapshot; latencies are in nanoseconds.
+ */
+public interface MiniLsmMXBean {
+
+    long getWrites();
+
+    long getGets();
+
+    long getWriteLatencyP50();
+
+    long getWriteLatencyP99();
+
+    long getGetLatencyP50();
+
+    long getGetLatencyP99();
+
+    long getFsyncLatencyP99();
+
+    double getFlushLatencyMean();
+
+    double getCompactionLatencyMean();
+
+    double getWriteAmplification();
+
+    double getReadAmplification();
+
+    long getWriteStops();
+
+    long getMemtableBytes();
+
+    long getWalSegmentBytes();
+
+    int getSstCount();
+
+    long getSstBytes();
+
+    long getBlockCacheHits();
+
+    long getBlockCacheMisses();
+}
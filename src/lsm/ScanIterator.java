@@ -0,0 +1,37 @@
+package lsm;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+    String view of a BinaryScanIterator, keys and values decoded as UTF-8. Pinned SSTs are released on close() or
+    once the scan is exhausted.
+ */
+public class ScanIterator implements Iterator<Map.Entry<String, String>>, Closeable {
+
+    private final BinaryScanIterator binary;
+
+    ScanIterator(final BinaryScanIterator binary) {
+        this.binary = binary;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return binary.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        final Map.Entry<byte[], byte[]> entry = binary.next();
+        return new AbstractMap.SimpleImmutableEntry<>(
+                new String(entry.getKey(), StandardCharsets.UTF_8), new String(entry.getValue(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() {
+        binary.close();
+    }
+}
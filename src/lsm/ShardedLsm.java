@@ -0,0 +1,329 @@
+package lsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/*
+    Hash partitioned store: keys are routed by a ConsistentHash ring to independent MiniLsm shards, each with its own
+    directory, WAL writer thread, memtables and background flush and compaction, so writes scale with cores and disks.
+
+    SHARDS in the root directory lists the ring's shards. Adding or removing a shard moves only the keys whose owner
+    changes, while reads and writes go on: MIGRATING_FROM keeps the previous ring until every moved key is in its new
+    shard, and a migration interrupted by a crash resumes on the next open. While it runs, a put to a key whose owner
+    changed goes to the new shard and then deletes the old copy, a delete removes the old copy first. MIGRATION_MARKS holds each shard's last sequence from when
+    the migration started: a version the new owner got after its mark was written during the migration, so it is
+    what reads return and a move never overwrites it. That holds even when a crash came between the two writes and
+    left the old copy live; older versions, say tombstones from an earlier migration out of that shard, do not count.
+ */
+public class ShardedLsm implements Closeable {
+
+    static final String SHARDS_FILE = "SHARDS";
+
+    static final String MIGRATING_FROM_FILE = "MIGRATING_FROM";
+
+    static final String MIGRATION_MARKS_FILE = "MIGRATION_MARKS";
+
+    private static final int KEY_LOCK_STRIPES = 64;
+
+    private static final int MIGRATION_BATCH_KEYS = 1024; //keys a migration holds in memory and moves in one go
+
+    private final Path rootDir;
+    private final LsmOptions options;
+    private final Map<String, MiniLsm> shards = new ConcurrentHashMap<>();
+
+    //routing changes take the write lock, so no operation straddles the start or end of a migration
+    private final ReadWriteLock routingLock = new ReentrantReadWriteLock();
+
+    //during a migration the moving keys and any write to them are serialized on the keys' stripes
+    private final Lock[] keyLocks = IntStream.range(0, KEY_LOCK_STRIPES).mapToObj(i -> new ReentrantLock()).toArray(Lock[]::new);
+
+    private volatile Routing routing;
+
+    // shardCount only applies to a new root directory, an existing one keeps its SHARDS
+    public ShardedLsm(final Path rootDir, final int shardCount, final LsmOptions options) throws IOException {
+        if (shardCount <= 0) throw new IllegalArgumentException("shardCount must be positive, was " + shardCount);
+        this.rootDir = Files.createDirectories(rootDir);
+        this.options = options;
+        List<String> shardIds = Manifest.read(rootDir, SHARDS_FILE);
+        if (shardIds == null) {
+            shardIds = IntStream.range(0, shardCount).mapToObj(i -> "shard-" + i).toList();
+            Manifest.write(rootDir, SHARDS_FILE, shardIds);
+        }
+        final List<String> previousIds = Manifest.read(rootDir, MIGRATING_FROM_FILE);
+        for (String shardId : shardIds) {
+            openShard(shardId);
+        }
+        if (previousIds != null) {
+            for (String shardId : previousIds) {
+                if (!shards.containsKey(shardId)) openShard(shardId);
+            }
+        }
+        this.routing = previousIds == null
+                ? new Routing(ring(shardIds), null, shardIds, Map.of())
+                : new Routing(ring(shardIds), ring(previousIds), shardIds, readMigrationMarks());
+        if (previousIds != null) {
+            migrate(previousIds); //crashed mid migration, finish moving keys
+        }
+    }
+
+    public void put(final String key, final String value) throws IOException {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void put(final String key, final String value, final Duration ttl) throws IOException {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), ttl);
+    }
+
+    public String get(final String key) throws IOException {
+        final byte[] value = get(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public void delete(final String key) throws IOException {
+        delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void put(final byte[] key, final byte[] value) throws IOException {
+        write(key, Cell.of(value));
+    }
+
+    public void put(final byte[] key, final byte[] value, final Duration ttl) throws IOException {
+        write(key, new Cell(value, System.currentTimeMillis() + ttl.toMillis(), 0));
+    }
+
+    public byte[] get(final byte[] key) throws IOException {
+        routingLock.readLock().lock();
+        try {
+            final Routing current = routing;
+            final MiniLsm owner = shards.get(current.ring().getNode(key));
+            final MiniLsm previousOwner = previousOwner(current, key);
+            if (previousOwner == null || previousOwner == owner) {
+                return owner.get(key);
+            }
+            final Cell written = writtenSinceMigrationStart(current, owner, key);
+            if (written != null) {
+                return written.isLive(System.currentTimeMillis()) ? written.value() : null;
+            }
+            //not moved yet, or moved and deleted from the old shard after being written to the new one
+            final byte[] value = previousOwner.get(key);
+            return value != null ? value : owner.get(key);
+        } finally {
+            routingLock.readLock().unlock();
+        }
+    }
+
+    public void delete(final byte[] key) throws IOException {
+        write(key, Cell.TOMBSTONE);
+    }
+
+    private void write(final byte[] key, final Cell cell) throws IOException {
+        routingLock.readLock().lock();
+        try {
+            final Routing current = routing;
+            final MiniLsm owner = shards.get(current.ring().getNode(key));
+            final MiniLsm previousOwner = previousOwner(current, key);
+            if (previousOwner == null || previousOwner == owner) {
+                owner.write(key, cell);
+                return;
+            }
+            final Lock keyLock = keyLocks[stripe(key)];
+            keyLock.lock();
+            try {
+                if (cell.isTombstone()) {
+                    //a flush may drop the new shard's tombstone when nothing older is there, so the old copy goes first
+                    previousOwner.write(key, Cell.TOMBSTONE);
+                    owner.write(key, cell);
+                } else {
+                    owner.write(key, cell);
+                    previousOwner.write(key, Cell.TOMBSTONE);
+                }
+            } finally {
+                keyLock.unlock();
+            }
+        } finally {
+            routingLock.readLock().unlock();
+        }
+    }
+
+    public List<String> shardIds() {
+        return routing.shardIds();
+    }
+
+    // opens a new shard under the root directory and moves the keys it now owns into it
+    public synchronized void addShard(final String shardId) throws IOException {
+        final List<String> shardIds = new ArrayList<>(routing.shardIds());
+        if (shardIds.contains(shardId)) throw new IllegalArgumentException("Shard " + shardId + " exists");
+        shardIds.add(shardId);
+        openShard(shardId);
+        reshard(shardIds);
+    }
+
+    // moves every key of the shard to the shards that own it now, then closes it. Its directory is left behind
+    public synchronized void removeShard(final String shardId) throws IOException {
+        final List<String> shardIds = new ArrayList<>(routing.shardIds());
+        if (!shardIds.remove(shardId)) throw new IllegalArgumentException("No shard " + shardId);
+        if (shardIds.isEmpty()) throw new IllegalArgumentException("Cannot remove the last shard");
+        reshard(shardIds);
+    }
+
+    private void reshard(final List<String> shardIds) throws IOException {
+        final List<String> previousIds = routing.shardIds();
+        final Map<String, Long> marks = new HashMap<>();
+        for (String shardId : shardIds) {
+            marks.put(shardId, shards.get(shardId).lastSequence());
+        }
+        //marks and the previous ring are durable before any key moves, so a crash mid migration can still find every key
+        Manifest.write(rootDir, MIGRATION_MARKS_FILE, marks.entrySet().stream().map(mark -> mark.getKey() + " " + mark.getValue()).toList());
+        Manifest.write(rootDir, MIGRATING_FROM_FILE, previousIds);
+        Manifest.write(rootDir, SHARDS_FILE, shardIds);
+        routingLock.writeLock().lock();
+        try {
+            routing = new Routing(ring(shardIds), ring(previousIds), List.copyOf(shardIds), Map.copyOf(marks));
+        } finally {
+            routingLock.writeLock().unlock();
+        }
+        migrate(previousIds);
+    }
+
+    /*
+        Moves the keys of the previous ring's shards whose owner changed, value and expiry included, then drops the
+        previous ring. Every shard is scanned since hashing scatters the moving keys over its whole key range, but
+        only those keys are written, MIGRATION_BATCH_KEYS at a time so memory stays bounded however many move.
+     */
+    private void migrate(final List<String> previousIds) throws IOException {
+        final Routing current = routing;
+        for (String shardId : previousIds) {
+            final MiniLsm source = shards.get(shardId);
+            final List<byte[]> moving = new ArrayList<>();
+            try (BinaryScanIterator keys = source.scan(new byte[0], null)) {
+                while (keys.hasNext()) {
+                    final byte[] key = keys.next().getKey();
+                    if (current.ring().getNode(key).equals(shardId)) continue;
+                    moving.add(key);
+                    if (moving.size() == MIGRATION_BATCH_KEYS) {
+                        move(current, source, moving);
+                        moving.clear();
+                    }
+                }
+            }
+            move(current, source, moving);
+        }
+
+        routingLock.writeLock().lock();
+        try {
+            routing = new Routing(current.ring(), null, current.shardIds(), Map.of());
+        } finally {
+            routingLock.writeLock().unlock();
+        }
+        Files.deleteIfExists(rootDir.resolve(MIGRATING_FROM_FILE));
+        Files.deleteIfExists(rootDir.resolve(MIGRATION_MARKS_FILE));
+        for (String shardId : previousIds) {
+            if (!current.shardIds().contains(shardId)) shards.remove(shardId).close();
+        }
+    }
+
+    /*
+        Writes the keys to their new shards, one WriteBatch per shard, and only then deletes them from source in one
+        more. Their stripes are locked in ascending order for the whole move, so no write to them slips in between. A
+        key the new shard was written since the migration started is only deleted: its source copy is older.
+     */
+    private void move(final Routing current, final MiniLsm source, final List<byte[]> keys) throws IOException {
+        final int[] stripes = keys.stream().mapToInt(ShardedLsm::stripe).distinct().sorted().toArray();
+        for (int stripe : stripes) {
+            keyLocks[stripe].lock();
+        }
+        try {
+            final Map<String, WriteBatch> moves = new HashMap<>();
+            final WriteBatch deletes = new WriteBatch();
+            for (byte[] key : keys) {
+                final Cell cell = source.liveCell(key); //read again, a write may have moved it already
+                if (cell == null) continue;
+                final String shardId = current.ring().getNode(key);
+                if (writtenSinceMigrationStart(current, shards.get(shardId), key) == null) {
+                    moves.computeIfAbsent(shardId, id -> new WriteBatch()).add(key, new Cell(cell.value(), cell.expiresAtMillis(), 0));
+                }
+                deletes.delete(key);
+            }
+            for (Map.Entry<String, WriteBatch> move : moves.entrySet()) {
+                shards.get(move.getKey()).write(move.getValue());
+            }
+            source.write(deletes);
+        } finally {
+            for (int stripe : stripes) {
+                keyLocks[stripe].unlock();
+            }
+        }
+    }
+
+    private void openShard(final String shardId) throws IOException {
+        shards.put(shardId, new MiniLsm(rootDir.resolve(shardId), options));
+    }
+
+    // the key's shard in the previous ring, null when no migration is running
+    private MiniLsm previousOwner(final Routing current, final byte[] key) {
+        return current.previous() == null ? null : shards.get(current.previous().getNode(key));
+    }
+
+    // the newest version of key in its new shard if the shard got it after the migration started, else null
+    private static Cell writtenSinceMigrationStart(final Routing current, final MiniLsm owner, final byte[] key) {
+        final Long mark = current.marks().get(current.ring().getNode(key));
+        if (mark == null) return null; //migration from before marks were kept, no version counts as newer
+        final Cell newest = owner.newestVersion(key);
+        return newest != null && newest.sequence() > mark ? newest : null;
+    }
+
+    // shard id -> sequence, empty when the migration started before marks were kept
+    private Map<String, Long> readMigrationMarks() throws IOException {
+        final List<String> lines = Manifest.read(rootDir, MIGRATION_MARKS_FILE);
+        if (lines == null) return Map.of();
+        final Map<String, Long> marks = new HashMap<>();
+        for (String line : lines) {
+            final int separator = line.lastIndexOf(' ');
+            marks.put(line.substring(0, separator), Long.parseLong(line.substring(separator + 1)));
+        }
+        return Map.copyOf(marks);
+    }
+
+    private static int stripe(final byte[] key) {
+        return Math.floorMod(Arrays.hashCode(key), KEY_LOCK_STRIPES);
+    }
+
+    private static ConsistentHash ring(final Collection<String> shardIds) {
+        final ConsistentHash ring = new ConsistentHash();
+        shardIds.forEach(ring::addNode);
+        return ring;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (MiniLsm shard : shards.values()) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    // rings are never modified once routing, previous is null and marks empty unless a migration is running
+    private record Routing(ConsistentHash ring, ConsistentHash previous, List<String> shardIds, Map<String, Long> marks) {
+    }
+}
@@ -0,0 +1,70 @@
+package lsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/*
+    Point in time view of a MiniLsm: reads through it see every write up to sequence() and nothing after, however
+    long the snapshot is held. While it is open compaction keeps the versions it sees, so close it when done.
+ */
+public class Snapshot implements Closeable {
+
+    private final MiniLsm lsm;
+    private final long sequence;
+    private boolean closed;
+
+    Snapshot(final MiniLsm lsm, final long sequence) {
+        this.lsm = lsm;
+        this.sequence = sequence;
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    public String get(final String key) {
+        final byte[] value = get(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public ScanIterator scan(final String startKey, final String endKey) throws IOException {
+        return new ScanIterator(scan(startKey.getBytes(StandardCharsets.UTF_8), endKey == null ? null : endKey.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public ScanIterator prefixScan(final String prefix) throws IOException {
+        return new ScanIterator(prefixScan(prefix.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public byte[] get(final byte[] key) {
+        checkOpen();
+        return lsm.get(key, sequence, sequence);
+    }
+
+    public List<byte[]> multiGet(final List<byte[]> keys) {
+        checkOpen();
+        return lsm.multiGet(keys, sequence, sequence);
+    }
+
+    public BinaryScanIterator scan(final byte[] startKey, final byte[] endKey) throws IOException {
+        checkOpen();
+        return lsm.scan(startKey, endKey, sequence);
+    }
+
+    public BinaryScanIterator prefixScan(final byte[] prefix) throws IOException {
+        checkOpen();
+        return lsm.prefixScan(prefix, sequence);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        lsm.releaseSnapshot(sequence);
+    }
+
+    private synchronized void checkOpen() {
+        if (closed) throw new IllegalStateException("Snapshot is closed");
+    }
+}
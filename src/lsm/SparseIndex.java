@@ -0,0 +1,69 @@
+package lsm;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/*
+    Sparse index of one SST flattened into primitive arrays: entry i is the key stored in
+    keyBytes[keyStarts[i], keyStarts[i + 1]) and the file offset of its block. Lookups binary search
+    the raw bytes, no per-lookup copies.
+ */
+final class SparseIndex {
+
+    private final byte[] keyBytes;
+    private final int[] keyStarts;
+    private final long[] offsets;
+
+    private SparseIndex(final byte[] keyBytes, final int[] keyStarts, final long[] offsets) {
+        this.keyBytes = keyBytes;
+        this.keyStarts = keyStarts;
+        this.offsets = offsets;
+    }
+
+    static SparseIndex of(final NavigableMap<byte[], Long> index) {
+        final byte[][] keys = new byte[index.size()][];
+        final long[] offsets = new long[index.size()];
+        final int[] keyStarts = new int[index.size() + 1];
+        int i = 0;
+        for (Map.Entry<byte[], Long> indexEntry : index.entrySet()) {
+            keys[i] = indexEntry.getKey();
+            offsets[i] = indexEntry.getValue();
+            keyStarts[i + 1] = keyStarts[i] + keys[i].length;
+            i++;
+        }
+        final byte[] keyBytes = new byte[keyStarts[keys.length]];
+        for (i = 0; i < keys.length; i++) {
+            System.arraycopy(keys[i], 0, keyBytes, keyStarts[i], keys[i].length);
+        }
+        return new SparseIndex(keyBytes, keyStarts, offsets);
+    }
+
+    int size() {
+        return offsets.length;
+    }
+
+    long offset(final int entry) {
+        return offsets[entry];
+    }
+
+    byte[] key(final int entry) {
+        return Arrays.copyOfRange(keyBytes, keyStarts[entry], keyStarts[entry + 1]);
+    }
+
+    // last entry whose key is <= key, -1 when key sorts before the first entry
+    int floor(final byte[] key) {
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int comparison = Arrays.compareUnsigned(keyBytes, keyStarts[mid], keyStarts[mid + 1], key, 0, key.length);
+            if (comparison <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+}
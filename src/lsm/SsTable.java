@@ -0,0 +1,392 @@
+package lsm;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    A sorted string table on disk with its in-memory sparse index, bloom filter and key range.
+
+    File layout: blocks | meta | meta offset (8 bytes) | FOOTER_MAGIC_V2 (8 bytes), where meta holds the entry count,
+    max key, sparse index, bloom filter and newest sequence so opening a table reads the tail of the file only. The
+    magic is the format version and alone decides how blocks and meta are read. Each block holds prefix compressed
+    records, is compressed on its own when that pays off and carries a CRC32C checked on every read (see
+    BlockBuilder); the sparse index has one entry per block, its first key and offset.
+
+    Format 1 tables (FOOTER_MAGIC) store plain records and index every few KB of them, their meta ends in the newest
+    sequence only if they were written once sequence numbers existed. Files written before the footer existed are
+    format 1 indexed by a full scan, with their filter (if any) in a sst-<...>.filter side file. Both stay readable,
+    compaction rewrites them in the current format.
+
+    Data is memory mapped once when the table is opened, so a point lookup is a binary search of the flat sparse index
+    plus one block: format 1 blocks are walked comparing raw key bytes in the page cache, format 2 blocks are decoded.
+    Tables over 1GB are mapped as several regions that each hold whole blocks. The mapping of a compacted table goes
+    away when it is garbage collected.
+
+    Flushes write level 0 files named sst-<id>.log. Compaction outputs are named sst-<level>-<seq>-<id>.log where
+    seq is the newest flush id merged into the file, so search order (level, then newest data first) survives restarts.
+ */
+class SsTable {
+
+    static final long FOOTER_MAGIC = 0x4d696e694c736d31L; //"MiniLsm1"
+
+    static final long FOOTER_MAGIC_V2 = 0x4d696e694c736d32L; //"MiniLsm2"
+
+    private static final int TRAILER_SIZE = 8 + 8;
+
+    private static final long MAX_REGION_SIZE = 1L << 30;
+
+    private static final Pattern FILE_NAME = Pattern.compile("sst-(?:(\\d+)-(\\d+)-)?(\\d+)\\.log");
+
+    //search order: lower levels first, newest data first within a level
+    static final Comparator<String> SEARCH_ORDER = Comparator
+            .comparingInt(SsTable::level)
+            .thenComparing(SsTable::seq, Comparator.reverseOrder())
+            .thenComparing(SsTable::id, Comparator.reverseOrder());
+
+    final File file;
+    final int level;
+    final long seq;
+    final long id;
+    final SparseIndex sparseIndex;
+    final BloomFilter bloomFilter;
+    final byte[] minKey;
+    final byte[] maxKey;
+    final long sizeBytes;
+    final long dataSize; //records end here, the footer follows
+    final long entryCount;
+    final long maxSequence; //newest version in the table, 0 for tables written before sequence numbers
+    final int formatVersion;
+
+    private final MappedByteBuffer[] regions;
+    private final long[] regionStarts;
+
+    //one reference is owned by sstIndices, readers take one while they use the file
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    SsTable(
+            final File file,
+            final SparseIndex sparseIndex,
+            final BloomFilter bloomFilter,
+            final byte[] maxKey,
+            final long dataSize,
+            final long entryCount,
+            final long maxSequence,
+            final int formatVersion) throws IOException {
+        this.file = file;
+        this.level = level(file.getName());
+        this.seq = seq(file.getName());
+        this.id = id(file.getName());
+        this.sparseIndex = sparseIndex;
+        this.bloomFilter = bloomFilter;
+        this.minKey = sparseIndex.key(0);
+        this.maxKey = maxKey;
+        this.sizeBytes = file.length();
+        this.dataSize = dataSize;
+        this.entryCount = entryCount;
+        this.maxSequence = maxSequence;
+        this.formatVersion = formatVersion;
+        this.regionStarts = regionStarts(sparseIndex, dataSize);
+        this.regions = new MappedByteBuffer[regionStarts.length];
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            for (int i = 0; i < regionStarts.length; i++) {
+                final long regionEnd = i + 1 < regionStarts.length ? regionStarts[i + 1] : dataSize;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, regionStarts[i], regionEnd - regionStarts[i]);
+            }
+        }
+    }
+
+    /*
+        Newest version of key with sequence <= sequence in this table, null if absent. Blocks are served from
+        blockCache when one is given. All versions of a key sit in the same block, see SsTableWriter.
+     */
+    Cell get(final byte[] key, final long sequence, final BlockCache blockCache) {
+        final int entry = sparseIndex.floor(key);
+        if (entry < 0) return null; // required key smaller than first key
+
+        //the key can only be inside the block starting at the floor entry
+        if (blockCache != null) {
+            return block(entry, blockCache).get(key, sequence);
+        }
+
+        final int region = region(entry);
+        final MappedByteBuffer data = regions[region];
+        int position = (int) (sparseIndex.offset(entry) - regionStarts[region]);
+        final int end = (int) (blockEnd(entry) - regionStarts[region]);
+        if (formatVersion >= 2) {
+            return Block.get(data, position, end, key, sequence);
+        }
+        while (position < end) {
+            final int keyLen = data.getInt(position);
+            final int comparison = Block.compareKey(data, position + 4, keyLen, key);
+            final int valPosition = position + 4 + keyLen;
+            if (comparison == 0 && Cell.sequence(data, valPosition) <= sequence) {
+                return Cell.decode(data, valPosition);
+            } else if (comparison > 0) {
+                return null; //records are sorted, walked past where the key would be
+            }
+            position = valPosition + Cell.encodedLength(data.getInt(valPosition));
+        }
+        return null;
+    }
+
+    /*
+        Lookups of keys in ascending order, cells[i] being the result for keys.get(i). Keys sharing a block are
+        answered from one read of it and blocks are visited in file order, so the table is read once, front to back.
+     */
+    Cell[] get(final List<byte[]> keys, final long sequence, final BlockCache blockCache) {
+        final Cell[] cells = new Cell[keys.size()];
+        Block block = null;
+        int blockEntry = -1;
+        for (int i = 0; i < keys.size(); i++) {
+            final int entry = sparseIndex.floor(keys.get(i));
+            if (entry < 0) continue;
+            if (entry != blockEntry) {
+                block = block(entry, blockCache);
+                blockEntry = entry;
+            }
+            cells[i] = block.get(keys.get(i), sequence);
+        }
+        return cells;
+    }
+
+    private Block block(final int entry, final BlockCache blockCache) {
+        if (blockCache == null) return readBlock(entry, false);
+        final long blockStart = sparseIndex.offset(entry);
+        Block block = blockCache.get(id, blockStart);
+        if (block == null) {
+            block = readBlock(entry, blockCache.offHeap());
+            blockCache.put(id, blockStart, block);
+        }
+        return block;
+    }
+
+    // the block of a sparse index entry, checked and decoded into a private copy
+    Block readBlock(final int entry, final boolean offHeap) {
+        final int region = region(entry);
+        final int start = (int) (sparseIndex.offset(entry) - regionStarts[region]);
+        final int end = (int) (blockEnd(entry) - regionStarts[region]);
+        return formatVersion >= 2
+                ? Block.decode(regions[region], start, end, offHeap)
+                : Block.fromRecords(regions[region], start, end, offHeap);
+    }
+
+    int blockCount() {
+        return sparseIndex.size();
+    }
+
+    // the block holding key if this table has it, where a forward scan for key has to start
+    int floorBlock(final byte[] key) {
+        return Math.max(0, sparseIndex.floor(key));
+    }
+
+    private long blockEnd(final int entry) {
+        return entry + 1 < sparseIndex.size() ? sparseIndex.offset(entry + 1) : dataSize;
+    }
+
+    private int region(final int entry) {
+        final int region = Arrays.binarySearch(regionStarts, sparseIndex.offset(entry));
+        return region < 0 ? -region - 2 : region;
+    }
+
+    // regions start at index block boundaries so no block, and therefore no lookup, spans two mappings
+    private static long[] regionStarts(final SparseIndex sparseIndex, final long dataSize) {
+        final List<Long> starts = new ArrayList<>(List.of(0L));
+        for (int entry = 0; entry < sparseIndex.size(); entry++) {
+            final long blockEnd = entry + 1 < sparseIndex.size() ? sparseIndex.offset(entry + 1) : dataSize;
+            if (blockEnd - starts.getLast() > MAX_REGION_SIZE && sparseIndex.offset(entry) > starts.getLast()) {
+                starts.add(sparseIndex.offset(entry));
+            }
+        }
+        return starts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    static SsTable open(final File sstFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(sstFile, "r")) {
+            final long length = raf.length();
+            if (length >= TRAILER_SIZE) {
+                raf.seek(length - TRAILER_SIZE);
+                final long metaOffset = raf.readLong();
+                final long magic = raf.readLong();
+                if (magic == FOOTER_MAGIC || magic == FOOTER_MAGIC_V2) {
+                    final byte[] meta = new byte[(int) (length - TRAILER_SIZE - metaOffset)];
+                    raf.seek(metaOffset);
+                    raf.readFully(meta);
+                    final int formatVersion = magic == FOOTER_MAGIC_V2 ? 2 : 1;
+                    return readMeta(sstFile, metaOffset, formatVersion, new DataInputStream(new ByteArrayInputStream(meta)));
+                }
+            }
+            raf.seek(0);
+            return scanLegacy(sstFile, raf);
+        }
+    }
+
+    // meta block written by SsTableWriter.finish
+    static void writeMeta(
+            final DataOutputStream dos,
+            final long entryCount,
+            final byte[] maxKey,
+            final SparseIndex sparseIndex,
+            final BloomFilter bloomFilter,
+            final long maxSequence) throws IOException {
+        dos.writeLong(entryCount);
+        writeBytes(dos, maxKey);
+        dos.writeInt(sparseIndex.size());
+        for (int entry = 0; entry < sparseIndex.size(); entry++) {
+            writeBytes(dos, sparseIndex.key(entry));
+            dos.writeLong(sparseIndex.offset(entry));
+        }
+        dos.writeBoolean(bloomFilter != null);
+        if (bloomFilter != null) bloomFilter.writeTo(dos);
+        dos.writeLong(maxSequence);
+    }
+
+    private static SsTable readMeta(final File sstFile, final long dataSize, final int formatVersion, final DataInputStream dis) throws IOException {
+        final long entryCount = dis.readLong();
+        final byte[] maxKey = readBytes(dis);
+        final NavigableMap<byte[], Long> sparseIndex = new TreeMap<>(MiniLsm.KEY_ORDER);
+        for (int i = dis.readInt(); i > 0; i--) {
+            final byte[] key = readBytes(dis);
+            sparseIndex.put(key, dis.readLong());
+        }
+        final BloomFilter bloomFilter = dis.readBoolean() ? BloomFilter.readFrom(dis) : null;
+        final long maxSequence = formatVersion >= 2 ? dis.readLong() : legacyMaxSequence(sstFile, dis);
+        return new SsTable(sstFile, SparseIndex.of(sparseIndex), bloomFilter, maxKey, dataSize, entryCount, maxSequence, formatVersion);
+    }
+
+    // format 1 tables only got the newest sequence appended to their meta once sequence numbers existed
+    private static long legacyMaxSequence(final File sstFile, final DataInputStream dis) throws IOException {
+        return switch (dis.available()) {
+            case 0 -> 0;
+            case 8 -> dis.readLong();
+            default -> throw new IOException("Corrupt meta block in " + sstFile);
+        };
+    }
+
+    // tables without a footer, rebuild the sparse index by walking every record
+    private static SsTable scanLegacy(final File sstFile, final RandomAccessFile raf) throws IOException {
+        final NavigableMap<byte[], Long> sparseIndex = new TreeMap<>(MiniLsm.KEY_ORDER);
+        long lastOffset = 0;
+        long entryCount = 0;
+        long nextIndexPoint = 0;
+        while (raf.getFilePointer() < raf.length()) {
+            long currOffset = raf.getFilePointer();
+            lastOffset = currOffset;
+            entryCount++;
+            final int keyLen = raf.readInt();
+            if (currOffset >= nextIndexPoint) {
+                final byte[] keyBytes = new byte[keyLen];
+                raf.readFully(keyBytes);
+                sparseIndex.put(keyBytes, currOffset);
+                nextIndexPoint = currOffset + MiniLsm.INDEX_ITEM_DISTANCE;
+            } else {
+                raf.skipBytes(keyLen);
+            }
+            raf.skipBytes(Cell.encodedLength(raf.readInt()) - 4);
+        }
+        raf.seek(lastOffset);
+        final byte[] maxKeyBytes = new byte[raf.readInt()];
+        raf.readFully(maxKeyBytes);
+
+        final File legacyFilterFile = filterFile(sstFile);
+        BloomFilter bloomFilter = null;
+        if (legacyFilterFile.exists()) {
+            try (final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(legacyFilterFile)))) {
+                bloomFilter = BloomFilter.readFrom(dis);
+            }
+        }
+        return new SsTable(sstFile, SparseIndex.of(sparseIndex), bloomFilter, maxKeyBytes, raf.length(), entryCount, 0, 1);
+    }
+
+    private static void writeBytes(final DataOutputStream dos, final byte[] bytes) throws IOException {
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream dis) throws IOException {
+        final byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    boolean covers(final byte[] key) {
+        return MiniLsm.KEY_ORDER.compare(minKey, key) <= 0 && MiniLsm.KEY_ORDER.compare(maxKey, key) >= 0;
+    }
+
+    boolean overlaps(final byte[] fromKey, final byte[] toKey) {
+        return MiniLsm.KEY_ORDER.compare(minKey, toKey) <= 0 && MiniLsm.KEY_ORDER.compare(maxKey, fromKey) >= 0;
+    }
+
+    // false only when key is definitely not in this table, judged by key range and bloom filter
+    boolean mightContain(final byte[] key) {
+        return covers(key) && (bloomFilter == null || bloomFilter.mightContain(key));
+    }
+
+    static boolean anyMightContain(final Collection<SsTable> tables, final byte[] key) {
+        for (SsTable sst : tables) {
+            if (sst.mightContain(key)) return true;
+        }
+        return false;
+    }
+
+    // false once the table has been compacted away and its files deleted
+    boolean tryAcquire() {
+        int current;
+        do {
+            current = refs.get();
+            if (current == 0) return false;
+        } while (!refs.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            file.delete();
+            filterFile(file).delete();
+        }
+    }
+
+    static boolean isSstFile(final String fileName) {
+        return FILE_NAME.matcher(fileName).matches();
+    }
+
+    static String fileName(final int level, final long seq, final long id) {
+        return level == 0 && seq == id ? "sst-" + id + ".log" : "sst-" + level + "-" + seq + "-" + id + ".log";
+    }
+
+    //side file that held the filter before it moved into the footer
+    static File filterFile(final File sstFile) {
+        final String sstName = sstFile.getName();
+        return new File(sstFile.getParentFile(), sstName.substring(0, sstName.length() - ".log".length()) + ".filter");
+    }
+
+    static int level(final String fileName) {
+        final Matcher matcher = parse(fileName);
+        return matcher.group(1) == null ? 0 : Integer.parseInt(matcher.group(1));
+    }
+
+    static long seq(final String fileName) {
+        final Matcher matcher = parse(fileName);
+        return matcher.group(2) == null ? Long.parseLong(matcher.group(3)) : Long.parseLong(matcher.group(2));
+    }
+
+    static long id(final String fileName) {
+        return Long.parseLong(parse(fileName).group(3));
+    }
+
+    private static Matcher parse(final String fileName) {
+        final Matcher matcher = FILE_NAME.matcher(fileName);
+        if (!matcher.matches()) throw new IllegalArgumentException("Not a SST file " + fileName);
+        return matcher;
+    }
+}
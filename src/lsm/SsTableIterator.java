@@ -0,0 +1,45 @@
+package lsm;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+    Sequential reader over the records of one SST, a block at a time from the table's mapping. Each block is
+    checksummed and decoded once as the iterator reaches it, so holding the iterator open costs no file handle.
+ */
+class SsTableIterator implements Iterator<Map.Entry<byte[], Cell>> {
+
+    private final SsTable sst;
+    private int nextBlock;
+    private Block block;
+    private int record;
+
+    SsTableIterator(final SsTable sst) {
+        this(sst, 0);
+    }
+
+    SsTableIterator(final SsTable sst, final int firstBlock) {
+        this.sst = sst;
+        this.nextBlock = firstBlock;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (block == null || record == block.size()) {
+            if (nextBlock >= sst.blockCount()) return false;
+            block = sst.readBlock(nextBlock++, false);
+            record = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public Map.Entry<byte[], Cell> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final Map.Entry<byte[], Cell> entry = new AbstractMap.SimpleImmutableEntry<>(block.key(record), block.cell(record));
+        record++;
+        return entry;
+    }
+}
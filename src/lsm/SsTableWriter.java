@@ -0,0 +1,122 @@
+package lsm;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/*
+    Streams sorted entries into a new SST followed by its footer (see SsTable). Entries collect in a BlockBuilder
+    that is cut at roughly INDEX_ITEM_DISTANCE bytes, each block indexed by its first key. Everything goes to a .tmp
+    file that is only renamed into place once fsynced, so a crash never leaves a half written sst-*.log behind.
+ */
+class SsTableWriter implements Closeable {
+
+    private final File sstFile;
+    private final File tmpFile;
+    private final FileOutputStream fileOutputStream;
+    private final BufferedOutputStream outputStream;
+    private final IoThrottle ioThrottle;
+    private final int bloomBitsPerKey;
+    private final BlockCodec blockCodec; //null stores blocks uncompressed
+    private final TreeMap<byte[], Long> sparseIndex = new TreeMap<>(MiniLsm.KEY_ORDER);
+    private final BlockBuilder block = new BlockBuilder();
+
+    private long[] keyHashes = new long[1024]; //filter is sized once the key count is known
+    private int keyCount;
+    private long entryCount;
+    private long maxSequence;
+    private byte[] lastKey;
+    private long currIndex;
+    private boolean finished;
+
+    SsTableWriter(final File sstFile, final int bloomBitsPerKey, final BlockCodec blockCodec, final IoThrottle ioThrottle) throws IOException {
+        this.sstFile = sstFile;
+        this.tmpFile = new File(sstFile.getParentFile(), sstFile.getName() + ".tmp");
+        this.fileOutputStream = new FileOutputStream(tmpFile);
+        this.outputStream = new BufferedOutputStream(fileOutputStream);
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.blockCodec = blockCodec;
+        this.ioThrottle = ioThrottle;
+    }
+
+    // keys must arrive in ascending order, versions of one key newest first
+    void add(final byte[] key, final Cell cell) throws IOException {
+        //blocks are only cut before a key's first version, so a lookup finds every version in one block
+        if (!Arrays.equals(key, lastKey)) {
+            if (block.sizeBytes() >= MiniLsm.INDEX_ITEM_DISTANCE) {
+                writeBlock();
+            }
+            if (block.isEmpty()) {
+                sparseIndex.put(key, currIndex);
+            }
+            if (bloomBitsPerKey > 0) {
+                if (keyCount == keyHashes.length) keyHashes = Arrays.copyOf(keyHashes, keyCount * 2);
+                keyHashes[keyCount] = BloomFilter.hash(key);
+            }
+            keyCount++;
+            lastKey = key;
+        }
+        entryCount++;
+        maxSequence = Math.max(maxSequence, cell.sequence());
+        block.add(key, cell);
+    }
+
+    private void writeBlock() throws IOException {
+        final byte[] blockBytes = block.finish(blockCodec);
+        ioThrottle.acquire(blockBytes.length);
+        outputStream.write(blockBytes);
+        currIndex += blockBytes.length;
+        block.reset();
+    }
+
+    // bytes written so far plus the open block before compression
+    long size() {
+        return currIndex + (block.isEmpty() ? 0 : block.sizeBytes());
+    }
+
+    byte[] lastKey() {
+        return lastKey;
+    }
+
+    boolean isEmpty() {
+        return keyCount == 0;
+    }
+
+    SsTable finish() throws IOException {
+        if (!block.isEmpty()) {
+            writeBlock();
+        }
+        BloomFilter bloomFilter = null;
+        if (bloomBitsPerKey > 0) {
+            bloomFilter = new BloomFilter(keyCount, bloomBitsPerKey);
+            for (int i = 0; i < keyCount; i++) {
+                bloomFilter.addHash(keyHashes[i]);
+            }
+        }
+
+        final SparseIndex flatIndex = SparseIndex.of(sparseIndex);
+        final DataOutputStream dos = new DataOutputStream(outputStream);
+        SsTable.writeMeta(dos, entryCount, lastKey, flatIndex, bloomFilter, maxSequence);
+        dos.writeLong(currIndex);
+        dos.writeLong(SsTable.FOOTER_MAGIC_V2);
+        dos.flush();
+        fileOutputStream.getFD().sync(); //SST must be durable before its inputs go away
+        outputStream.close();
+
+        Files.move(tmpFile.toPath(), sstFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Manifest.syncDirectory(sstFile.getParentFile().toPath()); //the rename too, before a manifest names the file
+        finished = true;
+        return new SsTable(sstFile, flatIndex, bloomFilter, lastKey, currIndex, entryCount, maxSequence, 2);
+    }
+
+    // drops the partial file unless finish() succeeded
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            outputStream.close();
+            tmpFile.delete();
+        }
+    }
+}
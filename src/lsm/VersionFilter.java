@@ -0,0 +1,76 @@
+package lsm;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+    Drops the versions no reader can see any more from a merged stream on its way into a new SST.
+
+    Live snapshots split the sequence space into stripes: a version in the stripe ending at snapshot s is seen by
+    s when it is the newest version of its key in that stripe, the last stripe belongs to readers of the latest
+    data. Only the newest version of each key per stripe is kept. A tombstone or expired value that every snapshot
+    sees (first stripe) is dropped too once no table older than the inputs can hold its key, otherwise it stays, as a
+    tombstone, to hide those older versions.
+ */
+class VersionFilter implements Iterator<Map.Entry<byte[], Cell>> {
+
+    private final Iterator<Map.Entry<byte[], Cell>> source;
+    private final long[] snapshots; //ascending
+    private final Collection<SsTable> olderTables;
+    private final long nowMillis;
+
+    private Map.Entry<byte[], Cell> head;
+    private byte[] lastKey;
+    private int lastStripe;
+
+    VersionFilter(
+            final Iterator<Map.Entry<byte[], Cell>> source,
+            final long[] snapshots,
+            final Collection<SsTable> olderTables,
+            final long nowMillis) {
+        this.source = source;
+        this.snapshots = snapshots;
+        this.olderTables = olderTables;
+        this.nowMillis = nowMillis;
+        this.head = advance();
+    }
+
+    private Map.Entry<byte[], Cell> advance() {
+        while (source.hasNext()) {
+            final Map.Entry<byte[], Cell> entry = source.next();
+            final Cell cell = entry.getValue();
+            final int stripe = stripe(cell.sequence());
+            if (Arrays.equals(entry.getKey(), lastKey) && stripe == lastStripe) continue; //a newer version covers the same readers
+            lastKey = entry.getKey();
+            lastStripe = stripe;
+
+            if (cell.isLive(nowMillis)) return entry;
+            if (stripe == 0 && !SsTable.anyMightContain(olderTables, entry.getKey())) continue;
+            return cell.isTombstone() ? entry : new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), cell.toTombstone());
+        }
+        return null;
+    }
+
+    // index of the oldest snapshot that sees sequence, snapshots.length for versions newer than every snapshot
+    private int stripe(final long sequence) {
+        final int index = Arrays.binarySearch(snapshots, sequence);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return head != null;
+    }
+
+    @Override
+    public Map.Entry<byte[], Cell> next() {
+        if (head == null) throw new NoSuchElementException();
+        final Map.Entry<byte[], Cell> entry = head;
+        head = advance();
+        return entry;
+    }
+}
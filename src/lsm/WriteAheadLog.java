@@ -0,0 +1,373 @@
+package lsm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/*
+    Group commit write ahead log. Callers enqueue records and a single writer thread encodes everything queued so
+    far into one reusable direct buffer, appends it with one channel write (and at most one fsync), runs each
+    record's onWritten hook in log order and then acknowledges the whole group. Records are encoded straight into
+    that buffer, so a write allocates no intermediate arrays and the channel needs no copy to native memory.
+
+    Segment layout: SEGMENT_MAGIC | SEGMENT_VERSION, then a sequence of frames, each one RECORD_MARKER | record
+    length | CRC32C | record for a single write or a WriteBatch frame, both checksummed. Segments without the
+    header predate it and may hold the bare records written before checksums, those are still replayed; in a
+    segment with the header anything but a frame ends replay, so a zeroed tail is never read as records. Replay
+    stops at the first frame that is cut short or fails its checksum: only the tail a crash interrupted can look
+    like that, and no write in it was acknowledged. Creating, rolling and deleting a segment syncs the directory.
+
+    A group whose write fails is cut off the segment again before the next group goes in, so nothing acknowledged
+    later sits behind torn bytes that replay would stop at. If that truncate fails too, or an interval fsync fails
+    (the kernel may have dropped the dirty pages already, a later fsync succeeding proves nothing), the log is
+    failed for good: every later append and close() report it.
+ */
+class WriteAheadLog implements Closeable {
+
+    public enum Durability {
+        SYNC_EVERY_COMMIT, // fsync before acknowledging a group
+        SYNC_ON_INTERVAL,  // acknowledge after the write, fsync in the background every interval
+        OS_BUFFERED        // leave it to the OS page cache
+    }
+
+    private static final int MAX_GROUP_SIZE = 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    static final int RECORD_MARKER = -2;
+
+    static final int SEGMENT_MAGIC = 0xFEEDA1F0; //negative, so no segment from before the header starts with it
+
+    static final int SEGMENT_VERSION = 1;
+
+    private static final int SEGMENT_HEADER_SIZE = 4 + 4;
+
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4;
+
+    // one entry of the log, written by the writer thread into the group buffer
+    interface Record {
+
+        int length();
+
+        void writeTo(ByteBuffer bb);
+    }
+
+    // opens a segment for appending, tests swap it to make writes fail
+    interface SegmentOpener {
+
+        FileChannel open(Path segment) throws IOException;
+    }
+
+    static final SegmentOpener APPEND = segment ->
+            FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+    private final Durability durability;
+    private final LsmMetrics metrics;
+    private final SegmentOpener segmentOpener;
+    private final BlockingQueue<PendingRecord> pendingRecords = new LinkedBlockingQueue<>();
+    private final AtomicLong size = new AtomicLong();
+    private final Thread writerThread;
+    private final ScheduledExecutorService syncExecutor;
+
+    private File logFile;
+    private FileChannel channel;
+    private ByteBuffer groupBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE); //writer thread only
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    WriteAheadLog(final File logFile, final Durability durability, final long syncIntervalMillis, final LsmMetrics metrics) throws IOException {
+        this(logFile, durability, syncIntervalMillis, metrics, APPEND);
+    }
+
+    WriteAheadLog(final File logFile, final Durability durability, final long syncIntervalMillis, final LsmMetrics metrics,
+                  final SegmentOpener segmentOpener) throws IOException {
+        this.durability = durability;
+        this.metrics = metrics;
+        this.segmentOpener = segmentOpener;
+        open(logFile);
+        this.writerThread = new Thread(this::writeLoop, "wal-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        if (durability == Durability.SYNC_ON_INTERVAL) {
+            this.syncExecutor = Executors.newSingleThreadScheduledExecutor();
+            this.syncExecutor.scheduleAtFixedRate(this::syncOnInterval, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncExecutor = null;
+        }
+    }
+
+    // completes once the record is part of a committed group and its onWritten hook has run
+    CompletableFuture<Void> append(final Record record, final Runnable onWritten) {
+        final PendingRecord pendingRecord = new PendingRecord(record, onWritten, new CompletableFuture<>());
+        if (failure != null) {
+            pendingRecord.ack().completeExceptionally(new IOException("Write ahead log failed", failure));
+        } else if (closed) {
+            pendingRecord.ack().completeExceptionally(new IOException("Write ahead log is closed"));
+        } else {
+            pendingRecords.add(pendingRecord);
+        }
+        return pendingRecord.ack();
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    File file() {
+        return logFile;
+    }
+
+    // switch to a new log file, callers must make sure no appends are in flight
+    synchronized void roll(final File nextLogFile) throws IOException {
+        if (failure != null) {
+            throw new IOException("Write ahead log failed", failure);
+        }
+        channel.force(false);
+        channel.close();
+        open(nextLogFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //anything that raced with the close flag never got written
+        for (PendingRecord pendingRecord = pendingRecords.poll(); pendingRecord != null; pendingRecord = pendingRecords.poll()) {
+            pendingRecord.ack().completeExceptionally(new IOException("Write ahead log is closed"));
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        synchronized (this) {
+            try {
+                if (failure == null) channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+        if (failure != null) {
+            throw new IOException("Write ahead log failed", failure);
+        }
+    }
+
+    private void open(final File file) throws IOException {
+        this.logFile = file;
+        this.channel = segmentOpener.open(file.toPath());
+        if (channel.size() == 0) {
+            final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE).putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(false);
+            Manifest.syncDirectory(file.getParentFile().toPath());
+        }
+        this.size.set(channel.size());
+    }
+
+    // once flushed, the segment goes away for good even if the store crashes right after
+    static void delete(final File segment) throws IOException {
+        Files.deleteIfExists(segment.toPath());
+        Manifest.syncDirectory(segment.getParentFile().toPath());
+    }
+
+    private void writeLoop() {
+        final List<PendingRecord> group = new ArrayList<>();
+        while (!closed || !pendingRecords.isEmpty()) {
+            try {
+                final PendingRecord first = pendingRecords.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                group.add(first);
+                pendingRecords.drainTo(group, MAX_GROUP_SIZE - 1);
+                commit(group);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(final List<PendingRecord> group) {
+        int groupSize = 0;
+        for (PendingRecord pendingRecord : group) {
+            groupSize += pendingRecord.record().length();
+        }
+        if (groupSize > groupBuffer.capacity()) {
+            groupBuffer = ByteBuffer.allocateDirect(Math.max(groupSize, groupBuffer.capacity() * 2));
+        }
+        final ByteBuffer bb = groupBuffer.clear();
+        if (failure != null) {
+            group.forEach(pendingRecord -> pendingRecord.ack().completeExceptionally(new IOException("Write ahead log failed", failure)));
+            return;
+        }
+        try {
+            for (PendingRecord pendingRecord : group) {
+                pendingRecord.record().writeTo(bb);
+            }
+            bb.flip();
+            synchronized (this) {
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+                if (durability == Durability.SYNC_EVERY_COMMIT) {
+                    final long start = System.nanoTime();
+                    channel.force(false); //one fsync for the whole group
+                    metrics.fsyncLatency.recordSince(start);
+                }
+                size.addAndGet(groupSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            discardTornGroup(e);
+            group.forEach(pendingRecord -> pendingRecord.ack().completeExceptionally(e));
+            return;
+        }
+        metrics.walBytesWritten.add(groupSize);
+        metrics.walGroups.increment();
+        for (PendingRecord pendingRecord : group) {
+            try {
+                pendingRecord.onWritten().run();
+                pendingRecord.ack().complete(null);
+            } catch (RuntimeException e) {
+                pendingRecord.ack().completeExceptionally(e);
+            }
+        }
+    }
+
+    // cuts whatever part of a failed group reached the segment, so the next group starts on a frame boundary
+    private synchronized void discardTornGroup(final Exception cause) {
+        try {
+            channel.truncate(size.get());
+            channel.position(size.get());
+        } catch (IOException | RuntimeException e) {
+            e.addSuppressed(cause);
+            failure = e instanceof IOException io ? io : new IOException(e);
+        }
+    }
+
+    // a single put or delete, framed with its checksum
+    static Record record(final byte[] key, final Cell cell) {
+        return new Record() {
+            @Override
+            public int length() {
+                return RECORD_HEADER_SIZE + MiniLsm.encodedLength(key, cell);
+            }
+
+            @Override
+            public void writeTo(final ByteBuffer bb) {
+                final int start = bb.position();
+                bb.position(start + RECORD_HEADER_SIZE);
+                MiniLsm.encode(bb, key, cell);
+                final int recordLength = bb.position() - start - RECORD_HEADER_SIZE;
+                final CRC32C crc = new CRC32C();
+                crc.update(bb.slice(start + RECORD_HEADER_SIZE, recordLength));
+                bb.putInt(start, RECORD_MARKER)
+                        .putInt(start + 4, recordLength)
+                        .putInt(start + 8, (int) crc.getValue());
+            }
+        };
+    }
+
+    /*
+        Replays one segment into memtable and returns the highest sequence in it. The segment is mapped and read
+        in place, every record is copied out of the mapping before it goes into the memtable.
+     */
+    static long replay(final File segment, final Memtable memtable) throws IOException {
+        final ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(segment.toPath())) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final boolean framedOnly = data.remaining() >= SEGMENT_HEADER_SIZE && data.getInt(0) == SEGMENT_MAGIC;
+        if (framedOnly) {
+            final int version = data.getInt(4);
+            if (version != SEGMENT_VERSION) {
+                throw new IOException("Unsupported WAL segment version " + version + " in " + segment);
+            }
+            data.position(SEGMENT_HEADER_SIZE);
+        }
+        long maxSequence = 0;
+        while (data.remaining() >= 4) {
+            final int marker = data.getInt(data.position());
+            final List<Map.Entry<byte[], Cell>> records;
+            if (marker == WriteBatch.BATCH_MARKER) {
+                records = WriteBatch.readFrame(data);
+            } else if (marker == RECORD_MARKER) {
+                records = readRecord(data, true);
+            } else if (marker >= 0 && !framedOnly) {
+                records = readRecord(data, false);
+            } else {
+                records = null;
+            }
+            if (records == null) break; //torn by a crash mid write, never acknowledged so dropped
+            for (Map.Entry<byte[], Cell> record : records) {
+                memtable.put(record.getKey(), record.getValue());
+                maxSequence = Math.max(maxSequence, record.getValue().sequence());
+            }
+        }
+        return maxSequence;
+    }
+
+    // the record at data's position, framed or bare. Null when it is cut short or fails its checksum
+    private static List<Map.Entry<byte[], Cell>> readRecord(final ByteBuffer data, final boolean framed) {
+        int position = data.position();
+        int end = data.limit();
+        if (framed) {
+            if (data.remaining() < RECORD_HEADER_SIZE) return null;
+            final int recordLength = data.getInt(position + 4);
+            final int checksum = data.getInt(position + 8);
+            position += RECORD_HEADER_SIZE;
+            if (recordLength < 0 || recordLength > end - position) return null;
+            end = position + recordLength;
+            final CRC32C crc = new CRC32C();
+            crc.update(data.slice(position, recordLength));
+            if ((int) crc.getValue() != checksum) return null;
+        }
+        if (end - position < 8) return null;
+        final int keyLen = data.getInt(position);
+        if (keyLen < 0 || keyLen > end - position - 8) return null;
+        final int valPosition = position + 4 + keyLen;
+        final int recordEnd = valPosition + Cell.encodedLength(data.getInt(valPosition));
+        if (framed ? recordEnd != end : recordEnd > end) return null;
+
+        final byte[] key = new byte[keyLen];
+        data.get(position + 4, key);
+        data.position(recordEnd);
+        return List.of(new AbstractMap.SimpleImmutableEntry<>(key, Cell.decode(data, valPosition)));
+    }
+
+    // package private so tests can run an interval without waiting for it
+    synchronized void syncOnInterval() {
+        if (failure != null) return;
+        try {
+            final long start = System.nanoTime();
+            channel.force(false);
+            metrics.fsyncLatency.recordSince(start);
+        } catch (IOException e) {
+            failure = e; //not rethrown, that would only cancel the schedule
+        }
+    }
+
+    private record PendingRecord(Record record, Runnable onWritten, CompletableFuture<Void> ack) {
+    }
+}
@@ -0,0 +1,144 @@
+package lsm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/*
+    Puts and deletes that MiniLsm.write applies as one unit: encoded into a single buffer as they are added,
+    appended to the WAL as one checksummed frame and, after a crash, replayed completely or not at all.
+
+    Frame layout: BATCH_MARKER | count | payload length | CRC32C | sequence | payload, where the payload is the
+    records in the usual key/cell layout and the checksum covers sequence and payload. Every record of the batch
+    shares that one sequence, so a reader sees all of the batch or none of it. The marker is negative so replay
+    never mistakes it for a key length.
+ */
+public class WriteBatch {
+
+    static final int BATCH_MARKER = -1;
+
+    private static final int CHECKSUMMED_FROM = 4 + 4 + 4 + 4;
+
+    private static final int HEADER_SIZE = CHECKSUMMED_FROM + 8;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(4096).position(HEADER_SIZE);
+    private final List<byte[]> keys = new ArrayList<>();
+    private final List<Cell> cells = new ArrayList<>();
+
+    public WriteBatch put(final String key, final String value) {
+        return put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public WriteBatch put(final String key, final String value, final Duration ttl) {
+        return put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), ttl);
+    }
+
+    public WriteBatch delete(final String key) {
+        return delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the arrays are kept, not copied, and must not change until the batch is written
+    public WriteBatch put(final byte[] key, final byte[] value) {
+        return add(key, Cell.of(value));
+    }
+
+    public WriteBatch put(final byte[] key, final byte[] value, final Duration ttl) {
+        return add(key, new Cell(value, System.currentTimeMillis() + ttl.toMillis(), 0));
+    }
+
+    public WriteBatch delete(final byte[] key) {
+        return add(key, Cell.TOMBSTONE);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    // the records in their key/cell layout, the bytes the batch adds to the store
+    int payloadBytes() {
+        return buffer.position() - HEADER_SIZE;
+    }
+
+    // any cell, expiry included, as ShardedLsm moves them
+    WriteBatch add(final byte[] key, final Cell cell) {
+        final int recordLength = MiniLsm.encodedLength(key, cell);
+        if (buffer.remaining() < recordLength) {
+            final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + recordLength);
+            buffer = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), capacity)).position(buffer.position());
+        }
+        MiniLsm.encode(buffer, key, cell);
+        keys.add(key);
+        cells.add(cell);
+        return this;
+    }
+
+    // the WAL frame, header included, for the batch committed at sequence. Written from the batch's own buffer
+    WriteAheadLog.Record frame(final long sequence) {
+        final int frameLength = buffer.position();
+        buffer.putLong(CHECKSUMMED_FROM, sequence);
+        final CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), CHECKSUMMED_FROM, frameLength - CHECKSUMMED_FROM);
+        buffer.putInt(0, BATCH_MARKER)
+                .putInt(4, keys.size())
+                .putInt(8, frameLength - HEADER_SIZE)
+                .putInt(12, (int) crc.getValue());
+        final byte[] frame = buffer.array();
+        return new WriteAheadLog.Record() {
+            @Override
+            public int length() {
+                return frameLength;
+            }
+
+            @Override
+            public void writeTo(final ByteBuffer bb) {
+                bb.put(frame, 0, frameLength);
+            }
+        };
+    }
+
+    // in order, so a key written twice ends up with its last value
+    void applyTo(final Memtable memtable, final long sequence) {
+        for (int i = 0; i < keys.size(); i++) {
+            memtable.put(keys.get(i), cells.get(i).withSequence(sequence));
+        }
+    }
+
+    /*
+        Records of the frame starting at data's position, which is moved past it. Null when the frame is cut short
+        or fails its checksum, which only happens to a batch whose write never completed and so was never acknowledged.
+     */
+    static List<Map.Entry<byte[], Cell>> readFrame(final ByteBuffer data) {
+        final int start = data.position();
+        if (data.remaining() < HEADER_SIZE) return null;
+        final int count = data.getInt(start + 4);
+        final int payloadLength = data.getInt(start + 8);
+        final int checksum = data.getInt(start + 12);
+        if (payloadLength < 0 || payloadLength > data.remaining() - HEADER_SIZE) return null;
+        final CRC32C crc = new CRC32C();
+        crc.update(data.slice(start + CHECKSUMMED_FROM, HEADER_SIZE - CHECKSUMMED_FROM + payloadLength));
+        if ((int) crc.getValue() != checksum) return null;
+
+        final long sequence = data.getLong(start + CHECKSUMMED_FROM);
+        final int end = start + HEADER_SIZE + payloadLength;
+        final List<Map.Entry<byte[], Cell>> records = new ArrayList<>(count);
+        for (int position = start + HEADER_SIZE; position < end; ) {
+            final byte[] key = new byte[data.getInt(position)];
+            data.get(position + 4, key);
+            final int valPosition = position + 4 + key.length;
+            records.add(new AbstractMap.SimpleImmutableEntry<>(key, Cell.decode(data, valPosition).withSequence(sequence)));
+            position = valPosition + Cell.encodedLength(data.getInt(valPosition));
+        }
+        data.position(end);
+        return records;
+    }
+}
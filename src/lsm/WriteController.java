@@ -0,0 +1,115 @@
+package lsm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Backpressure on writers when flushing or compaction falls behind, judged by the memtables waiting to be flushed
+    and the level 0 SSTs waiting to be compacted (every lookup searches each of them). Between the slowdown and stop
+    limits each write is delayed, up to MAX_DELAY_NANOS as the count nears the stop limit, so bursts stretch out
+    instead of piling up work. At the stop limit writes wait until a flush or compaction brings the count down, and
+    fail after writeStallTimeoutMillis. A limit of 0 disables it. It watches the store's memtables and level 0 count
+    directly rather than the store itself, so it can be built before the store is.
+ */
+class WriteController {
+
+    private static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long MAX_WAIT_MILLIS = 100; //recheck now and then, for progress that did not notify
+
+    private final AtomicReference<MiniLsm.Memtables> memtables;
+    private final AtomicInteger level0Files;
+    private final LsmMetrics metrics;
+    private final int slowdownImmutableMemtables;
+    private final int stopImmutableMemtables;
+    private final int slowdownLevel0Files;
+    private final int stopLevel0Files;
+    private final long stallTimeoutNanos;
+
+    private final Object progress = new Object();
+
+    private volatile boolean closed;
+
+    WriteController(
+            final AtomicReference<MiniLsm.Memtables> memtables,
+            final AtomicInteger level0Files,
+            final LsmMetrics metrics,
+            final LsmOptions options) {
+        this.memtables = memtables;
+        this.level0Files = level0Files;
+        this.metrics = metrics;
+        this.slowdownImmutableMemtables = options.slowdownImmutableMemtables();
+        this.stopImmutableMemtables = options.stopImmutableMemtables();
+        this.slowdownLevel0Files = options.slowdownLevel0Files();
+        this.stopLevel0Files = options.stopLevel0Files();
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.writeStallTimeoutMillis());
+    }
+
+    // called by every writer before it commits, returns once the write may go ahead
+    void awaitCapacity() throws IOException {
+        if (stopped()) {
+            awaitProgress();
+        }
+        final double pressure = Math.max(
+                pressure(immutableMemtables(), slowdownImmutableMemtables, stopImmutableMemtables),
+                pressure(level0Files.get(), slowdownLevel0Files, stopLevel0Files));
+        if (pressure > 0) {
+            metrics.writeSlowdowns.increment();
+            LockSupport.parkNanos((long) (pressure * MAX_DELAY_NANOS));
+        }
+    }
+
+    // a flush or compaction finished, stopped writers recheck the limits
+    void onProgress() {
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    // stalled writers give up and go on to fail on the closed WAL
+    void close() {
+        closed = true;
+        onProgress();
+    }
+
+    private void awaitProgress() throws IOException {
+        metrics.writeStops.increment();
+        final long start = System.nanoTime();
+        synchronized (progress) {
+            while (stopped() && !closed) {
+                final long remainingNanos = stallTimeoutNanos - (System.nanoTime() - start);
+                if (remainingNanos <= 0) {
+                    throw new IOException("Write stalled for " + TimeUnit.NANOSECONDS.toMillis(stallTimeoutNanos) + " ms with "
+                            + immutableMemtables() + " memtables waiting for flush and " + level0Files.get() + " level 0 SSTs");
+                }
+                try {
+                    progress.wait(Math.clamp(TimeUnit.NANOSECONDS.toMillis(remainingNanos), 1, MAX_WAIT_MILLIS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writes were stalled");
+                }
+            }
+        }
+        metrics.writeStallLatency.recordSince(start);
+    }
+
+    private boolean stopped() {
+        return (stopImmutableMemtables > 0 && immutableMemtables() >= stopImmutableMemtables)
+                || (stopLevel0Files > 0 && level0Files.get() >= stopLevel0Files);
+    }
+
+    private int immutableMemtables() {
+        return memtables.get().immutables().size();
+    }
+
+    // 0 below the slowdown limit, rising to 1 as count reaches the stop limit
+    private static double pressure(final int count, final int slowdown, final int stop) {
+        if (slowdown <= 0 || count < slowdown) return 0;
+        final int range = stop > slowdown ? stop - slowdown : 1;
+        return Math.min(1, (count - slowdown + 1.0) / range);
+    }
+}
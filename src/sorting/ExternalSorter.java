@@ -3,16 +3,25 @@ package sorting;
 import com.google.common.base.Stopwatch;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.Gatherers;
+import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
 public class ExternalSorter {
@@ -27,8 +36,70 @@ public class ExternalSorter {
     private static final long MEM_LIMIT = (INPUT_FILE_COUNT * INPUT_FILE_SIZE) / 100;
 
     private static final Path DATA_DIR = Path.of(System.getProperty("user.dir"), "external-sort");
+    private static final Path INTERMEDIARY_DIR = DATA_DIR.resolve("intermediary");
 
-    private static final ExecutorService executorService = Executors.newFixedThreadPool(300);
+    /*
+        The sort is planned around three limits rather than a thread count: MEM_LIMIT for every batch and block the
+        sort holds at once, IO_PARALLELISM for the files read or written at the same time, and MAX_FAN_IN for the runs
+        one merge opens. Sorting gets a thread per core. With VIRTUAL_THREAD_IO the I/O stages still run
+        IO_PARALLELISM at a time, on virtual threads, which helps when the file system blocks for long.
+     */
+    private static final int IO_PARALLELISM = 4;
+    private static final int MAX_FAN_IN = 300;
+    private static final boolean VIRTUAL_THREAD_IO = false;
+    private static final int SORT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final RunGeneration RUN_GENERATION = RunGeneration.SORT;
+
+    //format of the intermediate runs, the final sorted file is always RunFormat.RAW
+    private static final RunFormat RUN_FORMAT = RunFormat.DELTA_VARINT;
+
+    /*
+        Phase 0 is a pipeline, chunks parsed into batches on readService, sorted on sortService and written as runs on
+        writeService. A batch comes from a pool of PIPELINE_BATCHES, enough for every thread to have one and a couple
+        to spare, and goes back once written: parsing waits when sorting or writing falls behind, and the batches are
+        all the memory phase 0 holds.
+     */
+    private static final int PIPELINE_BATCHES = IO_PARALLELISM + SORT_THREADS + IO_PARALLELISM + 2;
+    private static final int BATCH_INTS = (int) Math.min(
+            MEM_LIMIT / (PIPELINE_BATCHES + (RUN_GENERATION == RunGeneration.RADIX_SORT ? SORT_THREADS : 0)) / Integer.BYTES,
+            Integer.MAX_VALUE - 8);
+
+    //radix sort's second array, one per sort thread and counted in BATCH_INTS above
+    private static final ThreadLocal<int[]> RADIX_SCRATCH = ThreadLocal.withInitial(() -> new int[BATCH_INTS]);
+
+    /*
+        Replacement selection runs one selector per lane, each fed the chunks of its files in order through a few
+        small transfer batches, and gives each selector's heap an equal share of what is left of MEM_LIMIT.
+     */
+    private static final int SELECTION_LANES = Math.min(IO_PARALLELISM, SORT_THREADS);
+    private static final int TRANSFER_BATCHES_PER_LANE = 3;
+
+    /*
+        Input is split into newline aligned chunks of about this many bytes, each parsed and sorted as its own task so
+        one large file keeps several cores busy. Sized a little under one batch of random ints (~11 bytes a line), so a
+        chunk seldom spills a handful of ints over into a second run.
+     */
+    private static final long CHUNK_SIZE = 10L * BATCH_INTS;
+
+    private static final int MAX_LINE_LENGTH = 13; //"-2147483648\r\n"
+
+    /*
+        Ints per block a merge reads from each run, and writes, at a time. Each run being merged holds two blocks and
+        a read buffer, the output a block and a write buffer, which caps the fan-in MEM_LIMIT allows.
+     */
+    private static final int MERGE_BLOCK_INTS = 8 * 1024;
+    private static final long MERGE_BLOCK_BYTES = (long) MERGE_BLOCK_INTS * Integer.BYTES;
+
+    private static final int BLOCK_HEADER_BYTES = 2 * Integer.BYTES; //payload length and int count
+    private static final int MAX_VARINT_BYTES = 5; //zigzagged differences between ints take up to 33 bits
+
+    private static final ExecutorService readService = ioExecutor();
+    private static final ExecutorService sortService = Executors.newFixedThreadPool(SORT_THREADS);
+    private static final ExecutorService writeService = ioExecutor(); //also runs the merges
+
+    //block reads ahead of the merges
+    private static final ExecutorService prefetchService = ioExecutor();
 
     static void main(final String[] args) throws IOException {
 
@@ -56,150 +127,851 @@ public class ExternalSorter {
         timer.reset();
         timer.start();
         System.out.println("Merging intermediaries...");
-        int currPhase = 0; // only so we can use it in lambda expression
-        final File intermediaryPathDir = Path.of(sortedDataFiles.getFirst()).getParent().toFile();
+        mergeRuns(sortedDataFiles.stream().map(File::new).toList());
 
-        //loop till we are only left with a single file
-        while (Objects.requireNonNull(intermediaryPathDir.list()).length != 1) {
+        System.out.println("Time taken to compute final sorted files ... " + timer.elapsed());
 
-            //locate all files to be sorted in current phase
-            final List<File> currPhaseFiles = findFilesForMerge(intermediaryPathDir, currPhase);
+        readService.shutdown();
+        sortService.shutdown();
+        writeService.shutdown();
+        prefetchService.shutdown();
+    }
 
-            //merge all files in current phase
-            CompletableFuture.allOf(
-                    constructMergeTasks(currPhaseFiles, currPhase + 1).stream()
-                            .map(runnable -> CompletableFuture.runAsync(runnable, executorService))
-                            .toArray(CompletableFuture[]::new)
-            ).join();
+    private static ExecutorService ioExecutor() {
+        return VIRTUAL_THREAD_IO
+                ? Executors.newFixedThreadPool(IO_PARALLELISM, Thread.ofVirtual().factory())
+                : Executors.newFixedThreadPool(IO_PARALLELISM);
+    }
 
-            currPhase++;
+    /*
+        Merges in as few passes as the fan-in allows, and spreads each pass's runs evenly over its merges: 1000 runs
+        at a fan-in of 300 become two passes of 32 way merges instead of 300, 300, 300 and 100 way merges followed by a
+        4 way one. Every pass reads the data once and no merge is wider than it needs to be. A pass runs as many merges
+        at a time as IO_PARALLELISM and MEM_LIMIT allow.
+     */
+    private static void mergeRuns(List<File> runs) {
+        final int maxFanIn = maxFanIn(MEM_LIMIT);
+        //a lone run is still rewritten when it is not in the final file's format
+        final int passes = runs.size() == 1 && RUN_FORMAT != RunFormat.RAW ? 1 : passes(runs.size(), maxFanIn);
+        System.out.println("Merging " + runs.size() + " runs in " + passes + " passes, fan-in at most " + maxFanIn);
+        for (int pass = 0; pass < passes; pass++) {
+            final int fanIn = fanIn(runs.size(), passes - pass);
+            final int merges = (runs.size() + fanIn - 1) / fanIn;
+            final int lanes = mergeLanes(merges, fanIn, MEM_LIMIT);
+
+            //merge i takes runs [i * size / merges, (i + 1) * size / merges), lanes work through the merges in turn
+            final List<File> currRuns = runs;
+            final int nextPhase = pass + 1;
+            final RunFormat format = nextPhase == passes ? RunFormat.RAW : RUN_FORMAT;
+            final List<CompletableFuture<List<File>>> laneFutures = IntStream.range(0, lanes)
+                    .mapToObj(lane -> CompletableFuture.supplyAsync(() -> IntStream.iterate(lane, i -> i < merges, i -> i + lanes)
+                            .mapToObj(i -> mergeFiles(currRuns.subList(
+                                    (int) ((long) i * currRuns.size() / merges),
+                                    (int) ((long) (i + 1) * currRuns.size() / merges)), nextPhase, format))
+                            .toList(), writeService))
+                    .toList();
+            runs = laneFutures.stream()
+                    .map(CompletableFuture::join)
+                    .flatMap(List::stream)
+                    .toList();
         }
+    }
 
-        System.out.println("Time taken to compute final sorted files ... " + timer.elapsed());
+    // widest merge memLimit holds, never more than MAX_FAN_IN nor less than 2
+    static int maxFanIn(final long memLimit) {
+        return (int) Math.max(2, Math.min(MAX_FAN_IN, (memLimit - mergeBytes(0)) / (mergeBytes(1) - mergeBytes(0))));
+    }
 
-        executorService.shutdown();
+    // merges of fanIn runs a pass runs at a time, at least one however small memLimit is
+    static int mergeLanes(final int merges, final int fanIn, final long memLimit) {
+        return (int) Math.max(1, Math.min(Math.min(merges, IO_PARALLELISM), memLimit / mergeBytes(fanIn)));
     }
 
-    private static List<File> findFilesForMerge(final File dir, final int phaseNumber) {
-        //locate all files to be sorted in current phase
-        return Arrays.stream(
-                        Objects.requireNonNull(
-                                dir.list((d, name) -> name.startsWith("phase_" + phaseNumber))
-                        )
-                )
-                .map(fileName -> new File(dir.toString(), fileName))
-                .toList();
+    // fewest passes of at most maxFanIn way merges that bring runs down to one
+    static int passes(final int runs, final int maxFanIn) {
+        int passes = 0;
+        for (long reach = 1; reach < runs; reach *= maxFanIn) {
+            passes++;
+        }
+        return passes;
     }
 
-    private static List<Runnable> constructMergeTasks(final List<File> files, final int nextPhase) {
-        return files.stream()
-                .gather(Gatherers.windowFixed(300))
-                .<Runnable>map(window -> () -> mergeFiles(window, nextPhase))
-                .toList();
+    // smallest fan-in that still finishes runs in the passes left
+    static int fanIn(final int runs, final int passesLeft) {
+        int fanIn = 2;
+        while (Math.pow(fanIn, passesLeft) < runs) {
+            fanIn++;
+        }
+        return fanIn;
     }
 
-    private static void mergeFiles(final List<File> files, final int nextPhase) {
-        final PriorityQueue<HeapNode> minHeap = new PriorityQueue<>(Comparator.comparing(HeapNode::count));
-        try {
+    // every run merged holds two blocks and a read buffer, the output a block and a write buffer
+    static long mergeBytes(final int fanIn) {
+        return (fanIn + 1L) * RUN_FORMAT.bufferBytes() + (2L * fanIn + 1) * MERGE_BLOCK_BYTES;
+    }
 
-            //bootstrapping heap
+    /*
+        Merges the runs through a loser tree over primitive blocks: one comparison per tree level for each int, no
+        object per int, and each run's next block is read in the background while the current one is consumed.
+     */
+    private static File mergeFiles(final List<File> files, final int nextPhase, final RunFormat format) {
+        final List<RunReader> readers = new ArrayList<>(files.size());
+        try {
             for (final File file : files) {
-                final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
-                final HeapNode heapNode = getHeapNode(file.toPath(), dis);
-                if (heapNode != null) minHeap.offer(heapNode);
+                readers.add(new RunReader(file.toPath()));
             }
-
+            final LoserTree tree = new LoserTree(readers);
+            final int[] block = new int[MERGE_BLOCK_INTS];
             final Path sortedFilePath = getSortedFilePath(nextPhase);
-            try (final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sortedFilePath.toFile())))) {
-                while (!minHeap.isEmpty()) {
-                    final HeapNode currMin = minHeap.poll();
-                    dos.writeInt(currMin.count());
-                    final HeapNode candidate = getHeapNode(currMin.filePath(), currMin.br());
-                    if (candidate != null) {
-                        minHeap.offer(candidate);
+            try (final RunWriter writer = new RunWriter(sortedFilePath, format)) {
+                int blockSize = 0;
+                while (tree.hasNext()) {
+                    block[blockSize++] = tree.next();
+                    if (blockSize == block.length) {
+                        writer.write(block, blockSize);
+                        blockSize = 0;
                     }
                 }
+                writer.write(block, blockSize);
+            }
+            for (final RunReader reader : readers) {
+                reader.close();
+                Files.delete(reader.path());
             }
+            return sortedFilePath.toFile();
         } catch (final Exception exception) {
+            readers.forEach(RunReader::closeQuietly);
             throw new RuntimeException(exception);
         }
     }
 
-    private static HeapNode getHeapNode(final Path filePath, final DataInputStream dis) throws IOException {
-        try {
-            final int val = dis.readInt();
-            return new HeapNode(val, filePath, dis);
-        } catch (EOFException ex) {
-            dis.close();
-            Files.delete(filePath);
-            return null;
+    /*
+        Phase 0: every input file is cut into chunks up front and each chunk is parsed on readService into batches,
+        which are sorted and written as runs further down the pipeline. A file is deleted once all of its chunks are
+        parsed.
+     */
+    private static List<String> splitAndSortTestData(final List<String> files) {
+        if (RUN_GENERATION == RunGeneration.REPLACEMENT_SELECTION) {
+            return selectRuns(files);
         }
-    }
+        final BatchPool batches = new BatchPool(PIPELINE_BATCHES, BATCH_INTS);
+        final List<CompletableFuture<String>> runFutures = Collections.synchronizedList(new ArrayList<>());
+        final Consumer<Batch> sortAndWrite = batch -> runFutures.add(CompletableFuture
+                .supplyAsync(() -> sortBatch(batch), sortService)
+                .thenApplyAsync(ExternalSorter::writeSortedRun, writeService)
+                .whenComplete((run, e) -> batches.release(batch.values())));
 
-    private static List<String> splitAndSortTestData(final List<String> files) {
-        
-        final List<CompletableFuture<List<String>>> sortingFutures = files.stream()
-                .map(testFile -> CompletableFuture.supplyAsync(() -> {
+        final List<CompletableFuture<Void>> deletions = new ArrayList<>();
+        for (final String testFile : files) {
+            final Path unsortedFilePath = Path.of(testFile);
+            final List<CompletableFuture<Void>> chunkFutures;
+            try {
+                chunkFutures = chunks(unsortedFilePath).stream()
+                        .map(chunk -> CompletableFuture.runAsync(() -> {
                             try {
-                                return sortFile(Path.of(testFile));
+                                parseChunk(unsortedFilePath, chunk, batches, sortAndWrite);
                             } catch (IOException e) {
-                                throw new RuntimeException(e);
+                                throw new UncheckedIOException(e);
                             }
-                        }, executorService)
-                ).toList();
+                        }, readService))
+                        .toList();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            deletions.add(CompletableFuture.allOf(chunkFutures.toArray(CompletableFuture<?>[]::new)).thenRun(() -> {
+                System.out.println("Deleting file..." + unsortedFilePath);
+                try {
+                    Files.delete(unsortedFilePath);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
 
-        final CompletableFuture<Void> allOfSortingFutures = CompletableFuture.allOf(
-                sortingFutures.toArray(new CompletableFuture[0])
-        );
+        CompletableFuture.allOf(deletions.toArray(CompletableFuture<?>[]::new)).join();
+        //every batch has been handed on once parsing is done
+        return runFutures.stream()
+                .map(CompletableFuture::join)
+                .toList();
+    }
 
-        return allOfSortingFutures.thenApply(
-                v -> sortingFutures.stream()
-                        .map(CompletableFuture::join)
-                        .flatMap(List::stream)
-                        .toList()
-        ).join();
+    private static Batch sortBatch(final Batch batch) {
+        switch (RUN_GENERATION) {
+            case PARALLEL_SORT -> Arrays.parallelSort(batch.values(), 0, batch.size());
+            case RADIX_SORT -> radixSort(batch.values(), batch.size(), RADIX_SCRATCH.get());
+            default -> Arrays.sort(batch.values(), 0, batch.size());
+        }
+        return batch;
     }
 
-    private static List<String> sortFile(final Path unsortedFilePath) throws IOException {
-        List<String> sortedFileNames = new ArrayList<>();
-        try (final BufferedReader br = new BufferedReader(new FileReader(unsortedFilePath.toFile()))) {
-            while (true) {
-                final int[] batch = readBatch(br);
-                if (batch.length == 0) break;
-                Arrays.sort(batch);
-                final Path sortedFilePath = getSortedFilePath(0);
-                try (final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sortedFilePath.toFile())))) {
-                    for (int val : batch) {
-                        dos.writeInt(val);
+    // LSD radix sort a byte at a time, four stable counting passes that leave the result back in values
+    static void radixSort(final int[] values, final int size, final int[] scratch) {
+        final int[] starts = new int[256];
+        int[] from = values;
+        int[] to = scratch;
+        for (int shift = 0; shift < Integer.SIZE; shift += 8) {
+            final int flip = shift == 24 ? 0x80 : 0; //sign bit flipped in the top byte so negatives come first
+            Arrays.fill(starts, 0);
+            for (int i = 0; i < size; i++) {
+                starts[((from[i] >>> shift) & 0xff) ^ flip]++;
+            }
+            for (int digit = 0, start = 0; digit < starts.length; digit++) {
+                final int count = starts[digit];
+                starts[digit] = start;
+                start += count;
+            }
+            for (int i = 0; i < size; i++) {
+                to[starts[((from[i] >>> shift) & 0xff) ^ flip]++] = from[i];
+            }
+            final int[] sorted = to;
+            to = from;
+            from = sorted;
+        }
+    }
+
+    /*
+        Phase 0 by replacement selection. Files are dealt out to SELECTION_LANES lanes; a lane parses its files' chunks
+        in order on readService and hands the batches to its selector on sortService, so input that is already partly
+        sorted reaches the selector in that order and yields long runs.
+     */
+    private static List<String> selectRuns(final List<String> files) {
+        final int lanes = Math.max(1, Math.min(SELECTION_LANES, files.size()));
+        final long transferBytes = TRANSFER_BATCHES_PER_LANE * MERGE_BLOCK_BYTES;
+        final long writeBytes = MERGE_BLOCK_BYTES + RUN_FORMAT.bufferBytes();
+        final int heapInts = Math.clamp((MEM_LIMIT / lanes - transferBytes - writeBytes) / Integer.BYTES,
+                MERGE_BLOCK_INTS, Integer.MAX_VALUE - 8);
+        final List<CompletableFuture<List<String>>> laneFutures = new ArrayList<>();
+        for (int lane = 0; lane < lanes; lane++) {
+            final List<Path> laneFiles = IntStream.iterate(lane, i -> i < files.size(), i -> i + lanes)
+                    .mapToObj(i -> Path.of(files.get(i)))
+                    .toList();
+            final BatchPool batches = new BatchPool(TRANSFER_BATCHES_PER_LANE, MERGE_BLOCK_INTS);
+            final BlockingQueue<Batch> selectorInput = new ArrayBlockingQueue<>(TRANSFER_BATCHES_PER_LANE + 1);
+            final CompletableFuture<Void> parsing = CompletableFuture.runAsync(() -> {
+                try {
+                    for (final Path file : laneFiles) {
+                        for (final Chunk chunk : chunks(file)) {
+                            parseChunk(file, chunk, batches, selectorInput::add);
+                        }
+                        System.out.println("Deleting file..." + file);
+                        Files.delete(file);
                     }
-                    sortedFileNames.add(sortedFilePath.toString());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    selectorInput.add(END_OF_INPUT);
                 }
+            }, readService);
+            final CompletableFuture<List<String>> selection = CompletableFuture.supplyAsync(() -> {
+                final ReplacementSelector selector = new ReplacementSelector(heapInts, INTERMEDIARY_DIR);
+                Batch batch = null;
+                try {
+                    for (batch = selectorInput.take(); batch != END_OF_INPUT; batch = selectorInput.take()) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            selector.add(batch.values()[i]);
+                        }
+                        batches.release(batch.values());
+                    }
+                    return selector.finish();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } finally {
+                    //a failed selector keeps releasing batches so its lane's parser does not wait on the pool forever
+                    while (batch != END_OF_INPUT && !Thread.currentThread().isInterrupted()) {
+                        try {
+                            batch = selectorInput.take();
+                            if (batch != END_OF_INPUT) batches.release(batch.values());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, sortService);
+            laneFutures.add(parsing.thenCombine(selection, (parsed, runs) -> runs));
+        }
+        return laneFutures.stream()
+                .map(CompletableFuture::join)
+                .flatMap(List::stream)
+                .toList();
+    }
+
+    // newline aligned byte ranges of about CHUNK_SIZE that together cover the file
+    private static List<Chunk> chunks(final Path file) throws IOException {
+        final List<Chunk> chunks = new ArrayList<>();
+        try (final FileChannel channel = FileChannel.open(file)) {
+            final long size = channel.size();
+            final ByteBuffer probe = ByteBuffer.allocate(MAX_LINE_LENGTH);
+            long start = 0;
+            while (start < size) {
+                final long end = start + CHUNK_SIZE >= size ? size : nextLineStart(channel, start + CHUNK_SIZE, probe);
+                chunks.add(new Chunk(start, end));
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    // position just past the first newline at or after position, or the end of the file
+    private static long nextLineStart(final FileChannel channel, long position, final ByteBuffer probe) throws IOException {
+        while (true) {
+            probe.clear();
+            final int read = channel.read(probe, position);
+            if (read <= 0) return channel.size();
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+    }
+
+    /*
+        Parses the chunk straight from the mapped file, one ASCII int per line and no String per line, into batches
+        taken from the pool, each passed on to sink once full. A line that is empty, a lone sign or out of int range
+        fails the sort with the file offset it starts at.
+     */
+    static void parseChunk(final Path file, final Chunk chunk, final BatchPool batches, final Consumer<Batch> sink) throws IOException {
+        final MappedByteBuffer data;
+        try (final FileChannel channel = FileChannel.open(file)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start(), chunk.end() - chunk.start());
+        }
+        int[] batch = null;
+        int batchSize = 0;
+        long value = 0; //magnitude, up to 2147483648 for the smallest int
+        int digits = 0;
+        boolean negative = false;
+        int lineStart = 0;
+        final int length = data.limit();
+        for (int i = 0; i <= length; i++) {
+            final byte b = i < length ? data.get(i) : (byte) '\n'; //last line may lack its newline
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (value > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE)) {
+                    throw new NumberFormatException("Int out of range at byte " + (chunk.start() + lineStart) + " of " + file);
+                }
+                digits++;
+            } else if (b == '\n') {
+                if (digits > 0) {
+                    if (batch == null) batch = batches.take();
+                    batch[batchSize++] = (int) (negative ? -value : value);
+                    if (batchSize == batch.length) {
+                        sink.accept(new Batch(batch, batchSize));
+                        batch = null;
+                        batchSize = 0;
+                    }
+                } else if (negative) {
+                    throw new NumberFormatException("Sign without digits at byte " + (chunk.start() + lineStart) + " of " + file);
+                } else if (i < length) { //past a final newline is the end of the chunk, not an empty line
+                    throw new NumberFormatException("Empty line at byte " + (chunk.start() + lineStart) + " of " + file);
+                }
+                value = 0;
+                digits = 0;
+                negative = false;
+                lineStart = i + 1;
+            } else if (b == '-' && digits == 0 && !negative) {
+                negative = true;
+            } else if (b != '\r' || i + 1 < length && data.get(i + 1) != '\n') {
+                throw new NumberFormatException("Unexpected byte " + b + " at " + (chunk.start() + i) + " of " + file);
+            }
+        }
+        if (batch != null) {
+            sink.accept(new Batch(batch, batchSize));
+        }
+    }
+
+    private static String writeSortedRun(final Batch batch) {
+        try {
+            final Path sortedFilePath = getSortedFilePath(0);
+            try (final RunWriter writer = new RunWriter(sortedFilePath)) {
+                writer.write(batch.values(), batch.size());
             }
+            return sortedFilePath.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        System.out.println("Deleting file..." + unsortedFilePath);
-        Files.delete(unsortedFilePath);
-        return sortedFileNames;
     }
 
     private static Path getSortedFilePath(int phaseNum) throws IOException {
-        final Path intermediarySortedFilesDir = Path.of(DATA_DIR.toString(), "intermediary");
+        return getSortedFilePath(INTERMEDIARY_DIR, phaseNum);
+    }
+
+    private static Path getSortedFilePath(final Path intermediarySortedFilesDir, int phaseNum) throws IOException {
         Files.createDirectories(intermediarySortedFilesDir);
         final String fileName = String.format("phase_%d_sorted_%d", phaseNum, Math.abs(ThreadLocalRandom.current().nextInt()));
         return Path.of(intermediarySortedFilesDir.toString(), fileName);
     }
 
-    private static int[] readBatch(final BufferedReader br) throws IOException {
-        int currentBatchSize = 0;
-        final int maxBatchSize = (int) (4 * MEM_LIMIT / INPUT_FILE_COUNT); // N files being sorted in parallel and 4 bytes per integer
-        String currLine;
-        final int[] batch = new int[maxBatchSize];
-        while (currentBatchSize < maxBatchSize && ((currLine = br.readLine()) != null)) {
-            batch[currentBatchSize++] = Integer.parseInt(currLine);
+    record Batch(int[] values, int size) {
+    }
+
+    //last batch a lane hands its selector, compared by identity
+    private static final Batch END_OF_INPUT = new Batch(new int[0], 0);
+
+    private enum RunGeneration {
+        SORT, //Arrays.sort each batch, runs are a batch long
+        PARALLEL_SORT, //Arrays.parallelSort each batch, for few large batches on many cores
+        RADIX_SORT, //LSD radix sort each batch, linear time at the cost of a second array per sort thread
+        REPLACEMENT_SELECTION //runs about twice the memory long on random input, far longer on partly sorted input
+    }
+
+    /*
+        RAW runs are big endian ints, 4 bytes each. DELTA_VARINT runs are framed in blocks of up to MERGE_BLOCK_INTS:
+        the payload's length and the int count, then each int's difference from the one before it (from 0 for the
+        first) zigzagged into a varint. Sorted ints sit close together, so most differences take 1 to 3 bytes and the
+        denser a run the better it compresses. Blocks decode on their own, so a reader never needs more than one.
+     */
+    enum RunFormat {
+        RAW,
+        DELTA_VARINT;
+
+        // bytes a read or write buffer needs for one block
+        int bufferBytes() {
+            return this == RAW ? (int) MERGE_BLOCK_BYTES : BLOCK_HEADER_BYTES + MERGE_BLOCK_INTS * MAX_VARINT_BYTES;
         }
-        return Arrays.copyOf(batch, currentBatchSize);
     }
 
-    private record HeapNode(int count, Path filePath, DataInputStream br) {
+    /*
+        Replacement selection: a heap emits its smallest int to the current run and takes the next input int in its
+        place. An input below the int just emitted cannot join the current run, so it is held back for the next one in
+        the slot the heap gives up at its end. The heap empties when every slot holds an int for the next run, which
+        then becomes the heap. On random input runs average twice the heap's size, on partly sorted input far more.
+
+        One array holds both runs: [0, size) is the heap of the current run, [size, filled) the ints held back.
+     */
+    static final class ReplacementSelector {
+
+        private final int[] heap;
+        private final Path runDir;
+        private final int[] block = new int[MERGE_BLOCK_INTS];
+        private final List<String> runs = new ArrayList<>();
+        private int size;
+        private int filled;
+        private int blockSize;
+        private Path run;
+        private RunWriter writer;
+
+        ReplacementSelector(final int capacity, final Path runDir) {
+            this.heap = new int[capacity];
+            this.runDir = runDir;
+        }
+
+        void add(final int value) throws IOException {
+            if (filled < heap.length) {
+                heap[filled++] = value;
+                if (filled == heap.length) {
+                    size = filled;
+                    heapify();
+                }
+                return;
+            }
+            final int min = heap[0];
+            emit(min);
+            if (value >= min) {
+                heap[0] = value;
+            } else {
+                heap[0] = heap[--size];
+                heap[size] = value;
+            }
+            siftDown(0);
+            if (size == 0) {
+                endRun();
+                size = filled;
+                heapify();
+            }
+        }
+
+        // writes out what is left, the current run and then the ints held back for the next, returns every run
+        List<String> finish() throws IOException {
+            if (filled < heap.length) { //input ended before the heap ever filled
+                size = filled;
+                heapify();
+            }
+            final int heldBack = filled - size;
+            drain();
+            System.arraycopy(heap, filled - heldBack, heap, 0, heldBack);
+            size = heldBack;
+            heapify();
+            drain();
+            return runs;
+        }
+
+        private void drain() throws IOException {
+            while (size > 0) {
+                emit(heap[0]);
+                heap[0] = heap[--size];
+                siftDown(0);
+            }
+            endRun();
+        }
+
+        private void emit(final int value) throws IOException {
+            if (writer == null) {
+                run = getSortedFilePath(runDir, 0);
+                writer = new RunWriter(run);
+            }
+            block[blockSize++] = value;
+            if (blockSize == block.length) {
+                writer.write(block, blockSize);
+                blockSize = 0;
+            }
+        }
+
+        private void endRun() throws IOException {
+            if (writer == null) return;
+            writer.write(block, blockSize);
+            writer.close();
+            runs.add(run.toString());
+            writer = null;
+            blockSize = 0;
+        }
+
+        private void heapify() {
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private void siftDown(int i) {
+            final int value = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+                if (heap[child] >= value) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = value;
+        }
+    }
+
+    // the int arrays phase 0 parses into, allocated as needed up to capacity and reused after that
+    static final class BatchPool {
+
+        private final BlockingQueue<int[]> free;
+        private final int capacity;
+        private final int batchInts;
+        private int allocated;
+
+        BatchPool(final int capacity, final int batchInts) {
+            this.free = new ArrayBlockingQueue<>(capacity);
+            this.capacity = capacity;
+            this.batchInts = batchInts;
+        }
+
+        // waits for a batch to be released once all of them are in use
+        int[] take() {
+            final int[] batch = free.poll();
+            if (batch != null) return batch;
+            synchronized (this) {
+                if (allocated < capacity) {
+                    allocated++;
+                    return new int[batchInts];
+                }
+            }
+            try {
+                return free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        void release(final int[] batch) {
+            free.add(batch);
+        }
+    }
+
+    record Chunk(long start, long end) {
+    }
+
+    /*
+        Tournament tree over the heads of k runs. Internal nodes hold the run that lost the match there and the overall
+        winner sits at tree[0], so taking the minimum replays a single leaf to root path: log2(k) comparisons against
+        stored losers, where a binary heap needs about twice that. An exhausted run loses every match.
+     */
+    static final class LoserTree {
+
+        private final List<RunReader> runs;
+        private final int[] heads;
+        private final boolean[] exhausted;
+        private final int[] tree;
+
+        LoserTree(final List<RunReader> runs) throws IOException {
+            final int k = Math.max(runs.size(), 1); //no runs is a single run that starts out exhausted
+            this.runs = runs;
+            this.heads = new int[k];
+            this.exhausted = new boolean[k];
+            this.tree = new int[k];
+            exhausted[0] = runs.isEmpty();
+            for (int i = 0; i < runs.size(); i++) {
+                pull(i);
+            }
+            tree[0] = k > 1 ? build(1) : 0;
+        }
+
+        boolean hasNext() {
+            return !exhausted[tree[0]];
+        }
+
+        int next() throws IOException {
+            final int winner = tree[0];
+            final int value = heads[winner];
+            pull(winner);
+            replay(winner);
+            return value;
+        }
+
+        // winner of the subtree under node, recording the losers on the way; leaves are nodes k..2k-1
+        private int build(final int node) {
+            if (node >= heads.length) return node - heads.length;
+            final int left = build(2 * node);
+            final int right = build(2 * node + 1);
+            if (beats(right, left)) {
+                tree[node] = left;
+                return right;
+            }
+            tree[node] = right;
+            return left;
+        }
+
+        private void replay(int winner) {
+            for (int node = (winner + heads.length) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    final int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+        }
+
+        private boolean beats(final int a, final int b) {
+            if (exhausted[a]) return false;
+            if (exhausted[b]) return true;
+            return heads[a] < heads[b] || (heads[a] == heads[b] && a < b);
+        }
+
+        private void pull(final int run) throws IOException {
+            final RunReader reader = runs.get(run);
+            if (reader.hasNext()) {
+                heads[run] = reader.next();
+            } else {
+                exhausted[run] = true;
+            }
+        }
+    }
+
+    /*
+        Reads a run in RUN_FORMAT unless told otherwise, a block of ints at a time, double buffered: while the merge
+        consumes one block the next is read and decoded into the other on prefetchService, so a merge only waits on
+        the disk when it outpaces it.
+     */
+    static final class RunReader implements Closeable {
+
+        private final Path path;
+        private final FileChannel channel;
+        private final RunFormat format;
+        private final ByteBuffer bytes;
+        private int[] block = new int[MERGE_BLOCK_INTS];
+        private int[] spare = new int[MERGE_BLOCK_INTS];
+        private int position;
+        private int limit;
+        private CompletableFuture<Integer> prefetch;
+
+        RunReader(final Path path) throws IOException {
+            this(path, RUN_FORMAT);
+        }
+
+        RunReader(final Path path, final RunFormat format) throws IOException {
+            this.path = path;
+            this.format = format;
+            this.bytes = ByteBuffer.allocateDirect(format.bufferBytes());
+            this.channel = FileChannel.open(path);
+            this.limit = read(block);
+            this.prefetch = limit > 0 ? prefetch(spare) : CompletableFuture.completedFuture(0);
+        }
+
+        Path path() {
+            return path;
+        }
+
+        boolean hasNext() throws IOException {
+            return position < limit || refill();
+        }
+
+        int next() {
+            return block[position++];
+        }
+
+        // swaps in the prefetched block and starts reading the one after it into the block just consumed
+        private boolean refill() throws IOException {
+            if (limit == 0) return false;
+            final int read;
+            try {
+                read = prefetch.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof UncheckedIOException io ? io.getCause() : new IOException(e.getCause());
+            }
+            final int[] consumed = block;
+            block = spare;
+            spare = consumed;
+            position = 0;
+            limit = read;
+            prefetch = read > 0 ? prefetch(spare) : CompletableFuture.completedFuture(0);
+            return read > 0;
+        }
+
+        private CompletableFuture<Integer> prefetch(final int[] into) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return read(into);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, prefetchService);
+        }
+
+        // fills into from the channel, 0 at the end of the run
+        private int read(final int[] into) throws IOException {
+            return format == RunFormat.RAW ? readRaw(into) : readDeltaVarint(into);
+        }
+
+        private int readRaw(final int[] into) throws IOException {
+            bytes.clear();
+            fill();
+            bytes.flip();
+            if (bytes.remaining() % Integer.BYTES != 0) {
+                throw new IOException("Run " + path + " ends in a partial int");
+            }
+            final int count = bytes.remaining() / Integer.BYTES;
+            bytes.asIntBuffer().get(into, 0, count);
+            return count;
+        }
+
+        private int readDeltaVarint(final int[] into) throws IOException {
+            bytes.clear().limit(BLOCK_HEADER_BYTES);
+            fill();
+            if (bytes.position() == 0) return 0;
+            final int length = bytes.getInt(0);
+            final int count = bytes.getInt(Integer.BYTES);
+            if (bytes.hasRemaining() || length < 0 || length > bytes.capacity() - BLOCK_HEADER_BYTES || count > into.length) {
+                throw new IOException("Run " + path + " has a corrupt block header");
+            }
+            bytes.limit(BLOCK_HEADER_BYTES + length);
+            fill();
+            if (bytes.hasRemaining()) {
+                throw new IOException("Run " + path + " ends in a partial block");
+            }
+            bytes.position(BLOCK_HEADER_BYTES);
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                long zigzag = 0;
+                byte b;
+                int shift = 0;
+                do {
+                    b = bytes.get();
+                    zigzag |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                into[i] = (int) previous;
+            }
+            return count;
+        }
+
+        // reads until bytes is full or the run ends
+        private void fill() throws IOException {
+            int read;
+            do {
+                read = channel.read(bytes);
+            } while (read >= 0 && bytes.hasRemaining());
+        }
+
+        @Override
+        public void close() throws IOException {
+            prefetch.exceptionally(e -> 0).join(); //never close the channel under a read in flight
+            channel.close();
+        }
+
+        void closeQuietly() {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // writes ints to a run in bulk through a direct buffer, in RUN_FORMAT unless told otherwise
+    static final class RunWriter implements Closeable {
+
+        private final FileChannel channel;
+        private final RunFormat format;
+        private final ByteBuffer buffer;
+
+        RunWriter(final Path path) throws IOException {
+            this(path, RUN_FORMAT);
+        }
+
+        RunWriter(final Path path, final RunFormat format) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.format = format;
+            this.buffer = ByteBuffer.allocateDirect(format.bufferBytes());
+        }
+
+        void write(final int[] values, final int count) throws IOException {
+            if (format == RunFormat.RAW) {
+                writeRaw(values, count);
+            } else {
+                writeDeltaVarint(values, count);
+            }
+        }
+
+        private void writeRaw(final int[] values, final int count) throws IOException {
+            final IntBuffer ints = buffer.clear().asIntBuffer();
+            for (int written = 0; written < count; ) {
+                final int n = Math.min(count - written, ints.capacity());
+                ints.clear();
+                ints.put(values, written, n);
+                buffer.clear().limit(n * Integer.BYTES);
+                drain();
+                written += n;
+            }
+        }
+
+        private void writeDeltaVarint(final int[] values, final int count) throws IOException {
+            for (int written = 0; written < count; ) {
+                final int n = Math.min(count - written, MERGE_BLOCK_INTS);
+                buffer.clear().position(BLOCK_HEADER_BYTES);
+                long previous = 0;
+                for (int i = written; i < written + n; i++) {
+                    final long delta = values[i] - previous;
+                    previous = values[i];
+                    long zigzag = (delta << 1) ^ (delta >> 63);
+                    while ((zigzag & ~0x7fL) != 0) {
+                        buffer.put((byte) (zigzag | 0x80));
+                        zigzag >>>= 7;
+                    }
+                    buffer.put((byte) zigzag);
+                }
+                buffer.putInt(0, buffer.position() - BLOCK_HEADER_BYTES).putInt(Integer.BYTES, n).flip();
+                drain();
+                written += n;
+            }
+        }
+
+        private void drain() throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
 
     private static class TestDataGenerator {
@@ -230,7 +1002,7 @@ public class ExternalSorter {
             }
 
             final List<CompletableFuture<String>> promises = LongStream.range(0, requestedFileCount)
-                    .mapToObj(i -> CompletableFuture.supplyAsync(this::writeInts, executorService)).
+                    .mapToObj(i -> CompletableFuture.supplyAsync(this::writeInts, writeService)).
                     toList();
 
             final CompletableFuture<Void> combined = CompletableFuture.allOf(promises.toArray(new CompletableFuture[0]));
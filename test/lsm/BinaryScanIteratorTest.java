@@ -0,0 +1,123 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class BinaryScanIteratorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void showsTheNewestLiveVersionOfEachKeyAcrossMemtablesAndTables() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            lsm.put("a", "table");
+            lsm.put("b", "table");
+            lsm.put("c", "table");
+            lsm.delete("d");
+            lsm.put("e", "table");
+            lsm.flush();
+            lsm.put("b", "older table");
+            lsm.flush();
+            lsm.put("a", "memtable"); //newer value over a table
+            lsm.delete("b"); //tombstone over two table versions
+            lsm.put("d", "memtable"); //value over a table tombstone
+            lsm.put("e", "expired", Duration.ofMillis(1)); //expired value over a table value
+            lsm.put("f", "memtable");
+            sleepPast(Duration.ofMillis(1));
+
+            assertEquals(Map.of("a", "memtable", "c", "table", "d", "memtable", "f", "memtable"), scan(lsm, "", null));
+        }
+    }
+
+    @Test
+    void includesTheStartKeyAndExcludesTheEndKey() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            for (String key : List.of("a", "b", "ba", "c", "d")) {
+                lsm.put(key, key);
+            }
+            lsm.flush();
+            lsm.put("bb", "bb");
+
+            assertEquals(List.of("b", "ba", "bb"), new ArrayList<>(scan(lsm, "b", "c").keySet()));
+            assertEquals(List.of("c", "d"), new ArrayList<>(scan(lsm, "c", null).keySet()));
+            assertEquals(List.of(), new ArrayList<>(scan(lsm, "e", null).keySet()));
+        }
+    }
+
+    @Test
+    void snapshotScanIgnoresLaterWrites() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            lsm.put("a", "before");
+            lsm.put("b", "before");
+            try (Snapshot snapshot = lsm.snapshot()) {
+                lsm.put("a", "after");
+                lsm.delete("b");
+                lsm.put("c", "after");
+                lsm.flush();
+
+                final Map<String, String> seen = new LinkedHashMap<>();
+                try (ScanIterator scan = snapshot.scan("", null)) {
+                    scan.forEachRemaining(entry -> seen.put(entry.getKey(), entry.getValue()));
+                }
+                assertEquals(Map.of("a", "before", "b", "before"), seen);
+            }
+        }
+    }
+
+    @Test
+    void prefixScanEndsAfterTheLastKeyWithThePrefix() throws IOException {
+        final byte[][] keys = {
+                {'a'}, {'a', (byte) 0xFE}, {'a', (byte) 0xFF}, {'a', (byte) 0xFF, 0}, {'a', (byte) 0xFF, (byte) 0xFF},
+                {'b'}, {(byte) 0xFF}, {(byte) 0xFF, (byte) 0xFF}, {(byte) 0xFF, (byte) 0xFF, 1}};
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            for (byte[] key : keys) {
+                lsm.put(key, key);
+            }
+
+            assertKeys(lsm.prefixScan(new byte[] {'a', (byte) 0xFF}), keys[2], keys[3], keys[4]);
+            assertKeys(lsm.prefixScan(new byte[] {'a'}), keys[0], keys[1], keys[2], keys[3], keys[4]);
+            //no key after an all 0xFF prefix, so the scan runs to the end
+            assertKeys(lsm.prefixScan(new byte[] {(byte) 0xFF, (byte) 0xFF}), keys[7], keys[8]);
+            assertKeys(lsm.prefixScan(new byte[0]), keys);
+        }
+    }
+
+    private static void assertKeys(final BinaryScanIterator scan, final byte[]... expected) {
+        try (scan) {
+            for (byte[] key : expected) {
+                assertArrayEquals(key, scan.next().getKey());
+            }
+            assertFalse(scan.hasNext());
+        }
+    }
+
+    private static Map<String, String> scan(final MiniLsm lsm, final String startKey, final String endKey) throws IOException {
+        final Map<String, String> seen = new LinkedHashMap<>();
+        try (ScanIterator scan = lsm.scan(startKey, endKey)) {
+            scan.forEachRemaining(entry -> seen.put(entry.getKey(), entry.getValue()));
+        }
+        return seen;
+    }
+
+    private static void sleepPast(final Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis() + 5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
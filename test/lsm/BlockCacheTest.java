@@ -0,0 +1,88 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockCacheTest {
+
+    private static final int STRIPES = 16;
+
+    private static final Block BLOCK = block();
+
+    @Test
+    void staysWithinItsByteBudget() {
+        final long capacity = STRIPES * 4L * BLOCK.sizeBytes();
+        final BlockCache cache = new BlockCache(capacity, false);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(1, i * 4096L, BLOCK);
+            assertTrue(cache.sizeBytes() <= capacity, "over budget after " + i + " puts: " + cache.sizeBytes());
+        }
+        assertTrue(cache.evictions() > 0);
+        assertEquals(1000 - cache.evictions(), cache.sizeBytes() / BLOCK.sizeBytes(), "every eviction frees one block");
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedBlock() {
+        //room for two blocks per stripe, so the block read before every put is never the eldest of its stripe
+        final BlockCache cache = new BlockCache(STRIPES * (2L * BLOCK.sizeBytes() + 1), false);
+        cache.put(1, 0, BLOCK);
+        for (int i = 1; i <= 500; i++) {
+            assertNotNull(cache.get(1, 0), "read before put " + i);
+            cache.put(1, i * 4096L, BLOCK);
+        }
+        assertNotNull(cache.get(1, 0));
+
+        int resident = 0;
+        for (int i = 1; i <= 500; i++) {
+            if (cache.get(1, i * 4096L) != null) resident++;
+        }
+        assertTrue(resident <= 2 * STRIPES, "at most two blocks per stripe, was " + resident);
+        assertTrue(cache.evictions() >= 500 - 2 * STRIPES);
+    }
+
+    @Test
+    void aBlockLargerThanItsStripeIsNotKept() {
+        final BlockCache cache = new BlockCache(STRIPES * (BLOCK.sizeBytes() - 1L), false);
+        cache.put(1, 0, BLOCK);
+        assertNull(cache.get(1, 0));
+        assertEquals(0, cache.sizeBytes());
+    }
+
+    @Test
+    void replacingABlockCountsItsBytesOnce() {
+        final BlockCache cache = new BlockCache(1024 * 1024, false);
+        cache.put(1, 0, BLOCK);
+        cache.put(1, 0, BLOCK);
+        assertEquals(BLOCK.sizeBytes(), cache.sizeBytes());
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        final BlockCache cache = new BlockCache(1024 * 1024, false);
+        assertNull(cache.get(1, 0));
+        cache.put(1, 0, BLOCK);
+        assertSame(BLOCK, cache.get(1, 0));
+        assertSame(BLOCK, cache.get(1, 0));
+        assertNull(cache.get(2, 0), "same offset in another table");
+
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    private static Block block() {
+        final BlockBuilder builder = new BlockBuilder();
+        for (int i = 0; i < 20; i++) {
+            builder.add(String.format("key-%03d", i).getBytes(UTF_8), Cell.of("value".getBytes(UTF_8)).withSequence(1));
+        }
+        final ByteBuffer stored = ByteBuffer.wrap(builder.finish(null));
+        return Block.decode(stored, 0, stored.capacity(), false);
+    }
+}
@@ -0,0 +1,93 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BlockTest {
+
+    private static final int KEYS = 100;
+
+    @Test
+    void lookupsOverRestartPointsMatchTheDecodedBlock() {
+        for (BlockCodec codec : new BlockCodec[] {null, BlockCodec.DEFLATE}) {
+            final BlockBuilder builder = new BlockBuilder();
+            for (int i = 0; i < KEYS; i++) {
+                //three versions each, newest first, so versions of a key straddle restart points
+                for (int version = 3; version >= 1; version--) {
+                    builder.add(key(i), Cell.of(value(i, version)).withSequence(version));
+                }
+            }
+            final ByteBuffer stored = ByteBuffer.wrap(builder.finish(codec));
+            final Block decoded = Block.decode(stored, 0, stored.capacity(), false);
+
+            for (int i = 0; i < KEYS; i++) {
+                for (int version = 1; version <= 3; version++) {
+                    assertArrayEquals(value(i, version), Block.get(stored, 0, stored.capacity(), key(i), version).value());
+                    assertArrayEquals(value(i, version), decoded.get(key(i), version).value());
+                }
+                assertNull(Block.get(stored, 0, stored.capacity(), key(i), 0), "older than every version");
+                assertNull(Block.get(stored, 0, stored.capacity(), (new String(key(i), UTF_8) + "x").getBytes(UTF_8), 3));
+            }
+            assertNull(Block.get(stored, 0, stored.capacity(), "a".getBytes(UTF_8), 3));
+            assertNull(Block.get(stored, 0, stored.capacity(), "z".getBytes(UTF_8), 3));
+        }
+    }
+
+    @Test
+    void registeringTheSameCodecAgainIsANoOp() {
+        assertDoesNotThrow(() -> Block.registerCodec(new TestCodec()));
+        assertDoesNotThrow(() -> Block.registerCodec(new TestCodec()));
+        assertThrows(IllegalArgumentException.class, () -> Block.registerCodec(new BlockCodec() {
+            @Override
+            public byte id() {
+                return TestCodec.ID;
+            }
+
+            @Override
+            public byte[] compress(final byte[] raw, final int length) {
+                return null;
+            }
+
+            @Override
+            public byte[] decompress(final byte[] compressed, final int offset, final int length, final int rawLength) {
+                return compressed;
+            }
+        }));
+    }
+
+    private static byte[] key(final int i) {
+        return String.format("key-%03d", i).getBytes(UTF_8);
+    }
+
+    private static byte[] value(final int i, final int version) {
+        return ("value-" + i + "-" + version).getBytes(UTF_8);
+    }
+
+    private static final class TestCodec implements BlockCodec {
+
+        static final byte ID = 100;
+
+        @Override
+        public byte id() {
+            return ID;
+        }
+
+        @Override
+        public byte[] compress(final byte[] raw, final int length) {
+            return null;
+        }
+
+        @Override
+        public byte[] decompress(final byte[] compressed, final int offset, final int length, final int rawLength) throws IOException {
+            throw new IOException("never compresses");
+        }
+    }
+}
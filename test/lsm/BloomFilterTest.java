@@ -0,0 +1,52 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+    private static final int KEYS = 10_000;
+
+    @Test
+    void neverRulesOutAnAddedKeyAndRarelyLetsAnotherThrough() {
+        final BloomFilter filter = new BloomFilter(KEYS, 10);
+        for (int i = 0; i < KEYS; i++) {
+            filter.add(key("in", i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(key("in", i)));
+            if (filter.mightContain(key("out", i))) falsePositives++;
+        }
+        assertTrue(falsePositives < KEYS * 0.02, "about 1% expected at 10 bits per key, was " + falsePositives);
+    }
+
+    @Test
+    void readsBackTheFilterItWrote() throws IOException {
+        final BloomFilter filter = new BloomFilter(100, 10);
+        for (int i = 0; i < 100; i++) {
+            filter.addHash(BloomFilter.hash(key("in", i)));
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bytes));
+
+        final BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(filter.mightContain(key("in", i)), read.mightContain(key("in", i)));
+            assertEquals(filter.mightContain(key("out", i)), read.mightContain(key("out", i)));
+        }
+    }
+
+    private static byte[] key(final String prefix, final int i) {
+        return (prefix + "-" + i).getBytes(UTF_8);
+    }
+}
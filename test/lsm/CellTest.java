@@ -0,0 +1,46 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CellTest {
+
+    @Test
+    void encodedCellsDecodeToTheSameVersion() throws IOException {
+        final byte[] value = "value".getBytes(UTF_8);
+        for (Cell cell : new Cell[] {Cell.of(value), new Cell(value, 1234, 0), new Cell(value, 1234, 42), Cell.TOMBSTONE.withSequence(7)}) {
+            final ByteBuffer bb = ByteBuffer.allocate(Cell.encodedLength(cell));
+            Cell.encode(bb, cell);
+            assertEquals(bb.capacity(), bb.position());
+            assertEquals(bb.capacity(), Cell.encodedLength(bb.getInt(0)));
+            assertEquals(cell.sequence(), Cell.sequence(bb, 0));
+            assertSameVersion(cell, Cell.decode(bb, 0));
+            assertSameVersion(cell, Cell.read(new DataInputStream(new ByteArrayInputStream(bb.array()))));
+        }
+    }
+
+    @Test
+    void readsTombstonesWrittenBeforeTheFlags() throws IOException {
+        final ByteBuffer bb = ByteBuffer.allocate(8).putInt(-1).putInt(0x7fffffff);
+
+        assertEquals(4, Cell.encodedLength(bb.getInt(0)));
+        assertEquals(0, Cell.sequence(bb, 0));
+        assertTrue(Cell.decode(bb, 0).isTombstone());
+        assertTrue(Cell.read(new DataInputStream(new ByteArrayInputStream(bb.array()))).isTombstone());
+    }
+
+    private static void assertSameVersion(final Cell expected, final Cell actual) {
+        assertArrayEquals(expected.value(), actual.value());
+        assertEquals(expected.expiresAtMillis(), actual.expiresAtMillis());
+        assertEquals(expected.sequence(), actual.sequence());
+    }
+}
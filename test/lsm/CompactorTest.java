@@ -0,0 +1,136 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactorTest {
+
+    private static final int KEYS = 2000;
+
+    private static final int TABLES = 4;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void leveledMergesLevel0IntoNonOverlappingLevel1Files() throws IOException {
+        //the store's own compactor never fires, the test runs one with a real trigger
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"), new LsmOptions().level0CompactionTrigger(1000))) {
+            writeOverlappingTables(lsm);
+            assertEquals(TABLES, tablesAt(lsm, 0).size());
+
+            final Compactor compactor = new Compactor(lsm, new LsmOptions().level0CompactionTrigger(TABLES).targetFileSizeBytes(16 * 1024));
+            assertTrue(compactor.compact());
+            assertFalse(compactor.compact(), "nothing left to do");
+
+            assertTrue(tablesAt(lsm, 0).isEmpty());
+            final List<SsTable> level1 = tablesAt(lsm, 1);
+            assertEquals(lsm.sstIndices.size(), level1.size());
+            assertTrue(level1.size() > 1, "output is split at the target file size");
+            level1.sort(Comparator.comparing(sst -> sst.minKey, MiniLsm.KEY_ORDER));
+            for (int i = 1; i < level1.size(); i++) {
+                assertTrue(MiniLsm.KEY_ORDER.compare(level1.get(i - 1).maxKey, level1.get(i).minKey) < 0);
+            }
+            assertNewestVersions(lsm);
+            assertEquals(1, lsm.metrics.compactions.sum());
+            assertTrue(lsm.metrics().compactionBytesWritten() > 0);
+        }
+    }
+
+    @Test
+    void leveledPushesAnOversizedLevelDown() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"), new LsmOptions().level0CompactionTrigger(1000))) {
+            writeOverlappingTables(lsm);
+
+            new Compactor(lsm, new LsmOptions().level0CompactionTrigger(TABLES).targetFileSizeBytes(16 * 1024).baseLevelBytes(32 * 1024)).compact();
+
+            final long level1Bytes = tablesAt(lsm, 1).stream().mapToLong(sst -> sst.sizeBytes).sum();
+            assertTrue(level1Bytes <= 32 * 1024, "level 1 is back under its limit, was " + level1Bytes);
+            assertFalse(tablesAt(lsm, 2).isEmpty());
+            assertNewestVersions(lsm);
+        }
+    }
+
+    @Test
+    void sizeTieredMergesSimilarlySizedTablesIntoOneRun() throws IOException {
+        final LsmOptions options = new LsmOptions().compactionStrategy(Compactor.Strategy.SIZE_TIERED);
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"), options.sizeTieredMinMergeWidth(1000))) {
+            writeOverlappingTables(lsm);
+
+            final Compactor compactor = new Compactor(lsm, new LsmOptions().compactionStrategy(Compactor.Strategy.SIZE_TIERED).sizeTieredMinMergeWidth(TABLES));
+            assertTrue(compactor.compact());
+
+            assertEquals(1, lsm.sstIndices.size());
+            assertEquals(0, lsm.sstIndices.values().iterator().next().level, "size tiered keeps everything in level 0");
+            assertNewestVersions(lsm);
+        }
+    }
+
+    @Test
+    void sizeTieredLeavesTablesOfDifferentSizesApart() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"),
+                new LsmOptions().compactionStrategy(Compactor.Strategy.SIZE_TIERED).sizeTieredMinMergeWidth(1000))) {
+            for (int size : new int[] {10, 100, 1000}) {
+                for (int i = 0; i < size; i++) {
+                    lsm.put(key(i), "v");
+                }
+                lsm.flush();
+            }
+
+            final Compactor compactor = new Compactor(lsm, new LsmOptions().compactionStrategy(Compactor.Strategy.SIZE_TIERED).sizeTieredMinMergeWidth(2));
+            assertFalse(compactor.compact(), "each table is more than bucketHigh times its neighbour");
+            assertEquals(3, lsm.sstIndices.size());
+        }
+    }
+
+    // TABLES level 0 tables over the same keys, table t writing "v" + t; the last one also deletes every tenth key
+    private static void writeOverlappingTables(final MiniLsm lsm) throws IOException {
+        for (int t = 0; t < TABLES; t++) {
+            for (int i = 0; i < KEYS; i++) {
+                if (t == TABLES - 1 && i % 10 == 0) {
+                    lsm.delete(key(i));
+                } else {
+                    lsm.put(key(i), "v" + t);
+                }
+            }
+            lsm.flush();
+        }
+    }
+
+    private static void assertNewestVersions(final MiniLsm lsm) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 10 == 0) {
+                assertNull(lsm.get(key(i)));
+            } else {
+                assertEquals("v" + (TABLES - 1), lsm.get(key(i)));
+            }
+        }
+        try (ScanIterator scan = lsm.scan("", null)) {
+            int live = 0;
+            while (scan.hasNext()) {
+                scan.next();
+                live++;
+            }
+            assertEquals(KEYS - KEYS / 10, live);
+        }
+    }
+
+    private static List<SsTable> tablesAt(final MiniLsm lsm, final int level) {
+        return new ArrayList<>(lsm.sstIndices.values().stream().filter(sst -> sst.level == level).toList());
+    }
+
+    private static String key(final int i) {
+        return String.format("key-%05d", i);
+    }
+}
@@ -0,0 +1,98 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+    @Test
+    void emptyHistogramReportsZeros() {
+        assertEquals(new Histogram.Snapshot(0, 0, 0, 0, 0, 0), new Histogram().snapshot());
+    }
+
+    @Test
+    void zeroHasABucketOfItsOwn() {
+        final Histogram histogram = new Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(0);
+        }
+        histogram.record(1000);
+
+        final Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.p50());
+        assertEquals(0, snapshot.p99());
+        assertEquals(1000, snapshot.p999());
+        assertEquals(10.0, snapshot.mean());
+    }
+
+    @Test
+    void percentilesAreTheUpperBoundOfTheirPowerOfTwoBucket() {
+        final Histogram histogram = new Histogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        final Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.count());
+        assertEquals(50.5, snapshot.mean());
+        assertEquals(63, snapshot.p50(), "the 50th value, 50, is in [32, 64)");
+        assertEquals(100, snapshot.p99(), "the 99th value is in [64, 128), capped at the max");
+        assertEquals(100, snapshot.max());
+    }
+
+    @Test
+    void bucketsSplitAtPowersOfTwo() {
+        //a larger value keeps the max from capping the bound
+        assertEquals(1, p50Of(1, 1, 1000));
+        assertEquals(3, p50Of(2, 2, 1000));
+        assertEquals(3, p50Of(3, 3, 1000));
+        assertEquals(7, p50Of(4, 4, 1000));
+        assertEquals(2, p50Of(2), "never above the max");
+        assertEquals(1023, p50Of(1023, 1023, 1024 * 1024));
+        assertEquals(2047, p50Of(1024, 1024, 1024 * 1024));
+        assertEquals(Long.MAX_VALUE, p50Of(Long.MAX_VALUE), "the last bucket is open ended");
+    }
+
+    @Test
+    void percentilesAreWithinAFactorOfTwoOfTheTrueValue() {
+        final Random random = new Random(42);
+        final long[] values = new long[10_000];
+        final Histogram histogram = new Histogram();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20); //spread over many buckets
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        final Histogram.Snapshot snapshot = histogram.snapshot();
+        assertWithinFactorOfTwo(values[(int) Math.ceil(0.50 * values.length) - 1], snapshot.p50());
+        assertWithinFactorOfTwo(values[(int) Math.ceil(0.99 * values.length) - 1], snapshot.p99());
+        assertWithinFactorOfTwo(values[(int) Math.ceil(0.999 * values.length) - 1], snapshot.p999());
+        assertEquals(values[values.length - 1], snapshot.max());
+    }
+
+    @Test
+    void recordSinceMeasuresFromTheStart() {
+        final Histogram histogram = new Histogram();
+        final long start = System.nanoTime() - 5_000_000;
+        histogram.recordSince(start);
+        assertTrue(histogram.snapshot().max() >= 5_000_000);
+    }
+
+    private static long p50Of(final long... values) {
+        final Histogram histogram = new Histogram();
+        for (long value : values) {
+            histogram.record(value);
+        }
+        return histogram.snapshot().p50();
+    }
+
+    private static void assertWithinFactorOfTwo(final long actual, final long reported) {
+        assertTrue(reported >= actual && reported <= Math.max(1, 2 * actual), "reported " + reported + " for " + actual);
+    }
+}
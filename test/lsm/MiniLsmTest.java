@@ -0,0 +1,347 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MiniLsmTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void opensDataDirWhoseNameLooksLikeATempFile() throws IOException {
+        final Path dataDir = tempDir.resolve("users.tmp");
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            lsm.put("k", "v");
+        }
+        Files.writeString(dataDir.resolve("MANIFEST.tmp"), "unfinished");
+        Files.createDirectories(dataDir.resolve("backup.tmp"));
+
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("v", lsm.get("k"));
+        }
+        assertFalse(Files.exists(dataDir.resolve("MANIFEST.tmp")));
+        assertTrue(Files.isDirectory(dataDir.resolve("backup.tmp")), "only leftover files are cleaned up");
+    }
+
+    @Test
+    void opensDataDirWhoseNameLooksLikeAWalSegment() throws IOException {
+        final Path dataDir = tempDir.resolve("wal-archive");
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            lsm.put("k", "v");
+        }
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("v", lsm.get("k"));
+        }
+    }
+
+    @Test
+    void recoversWritesFromWalSegmentsWithATornTail() throws IOException {
+        final Path dataDir = tempDir.resolve("store");
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            lsm.put("a", "1");
+            lsm.put("b", "2");
+        }
+        try (Stream<Path> files = Files.list(dataDir)) {
+            for (Path segment : files.filter(file -> file.getFileName().toString().startsWith("wal-")).toList()) {
+                Files.write(segment, new byte[] {-2, 0, 0, 0, 0, 0}, StandardOpenOption.APPEND); //a frame cut short
+            }
+        }
+
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("1", lsm.get("a"));
+            assertEquals("2", lsm.get("b"));
+            lsm.put("c", "3");
+        }
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("3", lsm.get("c"));
+        }
+    }
+
+    @Test
+    void deletesAndExpiriesHoldThroughFlushCompactionAndReopen() throws IOException {
+        final Path dataDir = tempDir.resolve("store");
+        final LsmOptions options = new LsmOptions().level0CompactionTrigger(2);
+        try (MiniLsm lsm = new MiniLsm(dataDir, options)) {
+            lsm.put("deleted", "v");
+            lsm.put("expiring", "v", Duration.ofMillis(1));
+            lsm.put("kept", "v");
+            lsm.put("lasting", "v", Duration.ofHours(1));
+            lsm.ingest(List.of(entry("z1", "v")).iterator()); //flushes the memtables first
+            lsm.delete("deleted");
+            lsm.ingest(List.of(entry("z2", "v")).iterator()); //second level 0 table, compacted with the first
+
+            assertNull(lsm.get("deleted"));
+            assertNull(lsm.get("expiring"));
+            assertEquals("v", lsm.get("kept"));
+            assertEquals("v", lsm.get("lasting"));
+        }
+        try (MiniLsm lsm = new MiniLsm(dataDir, options)) {
+            assertNull(lsm.get("deleted"));
+            assertNull(lsm.get("expiring"));
+            assertEquals("v", lsm.get("kept"));
+            assertEquals("v", lsm.get("lasting"));
+            try (ScanIterator scan = lsm.scan("a", null)) {
+                final List<String> keys = new ArrayList<>();
+                scan.forEachRemaining(entry -> keys.add(entry.getKey()));
+                assertEquals(List.of("kept", "lasting", "z1", "z2"), keys);
+            }
+        }
+    }
+
+    @Test
+    void bloomFiltersSkipTablesOnMisses() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            for (int i = 0; i < 2000; i += 2) {
+                lsm.put(String.format("key-%04d", i), "v");
+            }
+            lsm.ingest(List.of(entry("z", "v")).iterator()); //flushes the keys into one table, z into another
+            for (int i = 1; i < 2000; i += 2) {
+                assertNull(lsm.get(String.format("key-%04d", i)));
+            }
+
+            //each miss but key-1999, past the last key, falls in the first table's range, whose filter skips it or lets it through
+            assertEquals(999, lsm.bloomFilterHits() + lsm.bloomFilterFalsePositives());
+            assertTrue(lsm.bloomFilterFalsePositives() < 50, "was " + lsm.bloomFilterFalsePositives());
+            assertEquals(lsm.bloomFilterHits(), lsm.metrics().bloomFilterHits());
+        }
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("unfiltered"), new LsmOptions().bloomBitsPerKey(0))) {
+            lsm.put("a", "v");
+            lsm.put("c", "v");
+            lsm.ingest(List.of(entry("z", "v")).iterator());
+            assertNull(lsm.get("b"));
+            assertEquals(0, lsm.bloomFilterHits() + lsm.bloomFilterFalsePositives(), "no filter, nothing to count");
+        }
+    }
+
+    @Test
+    void keyOrderComparesBytesUnsigned() {
+        final List<byte[]> keys = new ArrayList<>(List.of(
+                new byte[] {(byte) 0xFF}, new byte[] {(byte) 0x80}, new byte[] {0x7F, (byte) 0xFF}, new byte[] {0x7F},
+                new byte[0], new byte[] {0x00}, new byte[] {(byte) 0x80, 0x00}));
+        keys.sort(MiniLsm.KEY_ORDER);
+
+        final List<byte[]> expected = List.of(
+                new byte[0], new byte[] {0x00}, new byte[] {0x7F}, new byte[] {0x7F, (byte) 0xFF},
+                new byte[] {(byte) 0x80}, new byte[] {(byte) 0x80, 0x00}, new byte[] {(byte) 0xFF});
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), keys.get(i));
+        }
+        //UTF-8 bytes in unsigned order sort strings by code point
+        assertTrue(MiniLsm.KEY_ORDER.compare("z".getBytes(UTF_8), "é".getBytes(UTF_8)) < 0);
+    }
+
+    @Test
+    void binaryKeysRoundTripThroughMemtablesTablesAndScans() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            for (int b = 0; b < 256; b += 2) {
+                lsm.put(new byte[] {(byte) b, 1}, new byte[] {(byte) b});
+            }
+            lsm.flush();
+            for (int b = 1; b < 256; b += 2) {
+                lsm.put(new byte[] {(byte) b, 1}, new byte[] {(byte) b}); //odd keys stay in the memtable
+            }
+
+            for (int b = 0; b < 256; b++) {
+                assertArrayEquals(new byte[] {(byte) b}, lsm.get(new byte[] {(byte) b, 1}));
+                assertNull(lsm.get(new byte[] {(byte) b}), "a key is not found by its prefix");
+            }
+            try (BinaryScanIterator scan = lsm.scan(new byte[] {0x7F}, new byte[] {(byte) 0x82})) {
+                for (int b = 0x7F; b < 0x82; b++) {
+                    assertArrayEquals(new byte[] {(byte) b, 1}, scan.next().getKey(), "high bit keys sort after 0x7F");
+                }
+                assertFalse(scan.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void byteBufferKeysAreReadFromTheirRemainingBytes() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            final ByteBuffer key = ByteBuffer.wrap(new byte[] {9, 9, 1, 2, 9}).position(2).limit(4);
+            lsm.put(key, ByteBuffer.wrap(new byte[] {7}));
+            assertEquals(2, key.position(), "the caller's buffer is left as is");
+
+            final ByteBuffer value = lsm.get(ByteBuffer.wrap(new byte[] {1, 2}));
+            assertTrue(value.isReadOnly());
+            assertEquals(ByteBuffer.wrap(new byte[] {7}), value);
+            assertArrayEquals(new byte[] {7}, lsm.get(new byte[] {1, 2}));
+        }
+    }
+
+    @Test
+    void metricsCountWritesReadsAndBytesWritten() throws Exception {
+        final Path dataDir = tempDir.resolve("store");
+        try (MiniLsm lsm = new MiniLsm(dataDir, new LsmOptions().jmxEnabled(true))) {
+            for (int i = 0; i < 100; i++) {
+                lsm.put("k" + i, "v");
+            }
+            lsm.write(new WriteBatch().put("a", "v").delete("b"));
+            lsm.flush();
+            lsm.get("k1");
+            lsm.get("missing");
+
+            final MetricsSnapshot metrics = lsm.metrics();
+            assertEquals(101, metrics.writes(), "a batch is one write");
+            assertEquals(2, metrics.gets());
+            assertEquals(101, metrics.writeLatency().count());
+            assertTrue(metrics.walGroupCommits() >= 1 && metrics.walGroupCommits() <= 101);
+            assertTrue(metrics.userBytesWritten() > 0);
+            assertTrue(metrics.writeAmplification() > 1, "WAL and flush bytes both count, was " + metrics.writeAmplification());
+            assertEquals(1, metrics.sstCount());
+            assertEquals(1, metrics.flushLatency().count());
+
+            final ObjectName name = new ObjectName("MiniLsm:type=MiniLsm,dir=" + ObjectName.quote(dataDir.toString()));
+            assertEquals(101L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Writes"));
+            assertEquals(1, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SstCount"));
+        }
+    }
+
+    @Test
+    void ingestedRecordsAreNewerThanEarlierWritesAndOlderThanLaterOnes() throws IOException {
+        final Path dataDir = tempDir.resolve("ingest-users");
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            lsm.put("a", "put before");
+            lsm.put("b", "put before");
+            lsm.ingest(List.of(entry("b", "ingested"), entry("c", "first"), entry("a", "ingested"), entry("c", "last")).iterator());
+            lsm.put("a", "put after");
+
+            assertEquals("put after", lsm.get("a"));
+            assertEquals("ingested", lsm.get("b"));
+            assertEquals("last", lsm.get("c"), "of duplicate keys the one given last wins");
+        }
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("put after", lsm.get("a"));
+            assertEquals("ingested", lsm.get("b"));
+            assertEquals("last", lsm.get("c"));
+        }
+    }
+
+    @Test
+    void ingestStaysOutOfEarlierSnapshotsAndUnderLaterDeletes() throws IOException {
+        final Path dataDir = tempDir.resolve("store");
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            lsm.put("a", "put before");
+            try (Snapshot before = lsm.snapshot()) {
+                lsm.ingest(List.of(entry("a", "ingested"), entry("b", "ingested")).iterator());
+                lsm.delete("b");
+
+                assertEquals("put before", before.get("a"));
+                assertNull(before.get("b"));
+                assertEquals("ingested", lsm.get("a"));
+                assertNull(lsm.get("b"));
+            }
+        }
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("ingested", lsm.get("a"));
+            assertNull(lsm.get("b"), "the delete stays newer than the ingest");
+        }
+    }
+
+    @Test
+    void multiGetFindsTheNewestVersionAcrossMemtablesAndTables() throws IOException {
+        final List<LsmOptions> variants = List.of(
+                new LsmOptions(),
+                new LsmOptions().multiGetParallelism(4),
+                new LsmOptions().blockCacheBytes(0));
+        for (int variant = 0; variant < variants.size(); variant++) {
+            try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store-" + variant), variants.get(variant))) {
+                for (int i = 0; i < 500; i++) {
+                    lsm.put("k" + i, "old");
+                }
+                lsm.ingest(List.of(entry("z1", "v")).iterator()); //flushes the memtable to a table of its own
+                for (int i = 0; i < 500; i += 2) {
+                    lsm.put("k" + i, "new");
+                }
+                lsm.delete("k3");
+                lsm.ingest(List.of(entry("z2", "v")).iterator());
+                lsm.put("k5", "newest"); //stays in the memtable
+
+                final List<String> keys = List.of("k0", "k1", "k3", "k5", "missing", "k0", "k499");
+                final List<byte[]> values = lsm.multiGet(keys.stream().map(key -> key.getBytes(UTF_8)).toList());
+                final List<String> expected = Arrays.asList("new", "old", null, "newest", null, "new", "old");
+                assertEquals(expected, values.stream().map(value -> value == null ? null : new String(value, UTF_8)).toList());
+                for (int i = 0; i < 500; i++) {
+                    assertEquals(lsm.get("k" + i), lsm.multiGet(List.of("k" + i)).get("k" + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void multiGetCountsEveryKeyAsAGet() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            lsm.put("a", "1");
+            lsm.ingest(List.of(entry("b", "2")).iterator());
+            final MetricsSnapshot before = lsm.metrics();
+
+            lsm.multiGet(List.of("a".getBytes(UTF_8), "b".getBytes(UTF_8), "c".getBytes(UTF_8)));
+
+            final MetricsSnapshot after = lsm.metrics();
+            assertEquals(before.gets() + 3, after.gets());
+            assertEquals(before.getLatency().count() + 3, after.getLatency().count());
+            assertTrue(after.sstProbesPerGet().count() > before.sstProbesPerGet().count());
+            assertTrue(after.readAmplification() > 0);
+        }
+    }
+
+    @Test
+    void snapshotMultiGetSeesOnlyWritesBeforeIt() throws IOException {
+        try (MiniLsm lsm = new MiniLsm(tempDir.resolve("store"))) {
+            lsm.put("a", "before");
+            lsm.put("b", "before");
+            try (Snapshot snapshot = lsm.snapshot()) {
+                lsm.put("a", "after");
+                lsm.delete("b");
+                lsm.put("c", "after");
+                lsm.ingest(List.of(entry("z", "v")).iterator()); //the newer versions go to a table too
+
+                final List<byte[]> values = snapshot.multiGet(List.of("a".getBytes(UTF_8), "b".getBytes(UTF_8), "c".getBytes(UTF_8)));
+                assertEquals("before", new String(values.get(0), UTF_8));
+                assertEquals("before", new String(values.get(1), UTF_8));
+                assertNull(values.get(2));
+                assertEquals(Map.of("a", "after", "c", "after"), lsm.multiGet(List.of("a", "b", "c")));
+            }
+        }
+    }
+
+    @Test
+    void openRemovesRunsOfAnInterruptedIngest() throws IOException {
+        final Path dataDir = tempDir.resolve("store");
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            lsm.put("k", "v");
+        }
+        final Path abandoned = Files.createDirectories(dataDir.resolve(BulkLoader.RUNS_DIR).resolve("42"));
+        Files.writeString(abandoned.resolve("run-0"), "partial run");
+
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("v", lsm.get("k"));
+        }
+        assertFalse(Files.exists(abandoned));
+    }
+
+    private static Map.Entry<byte[], byte[]> entry(final String key, final String value) {
+        return Map.entry(key.getBytes(UTF_8), value.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,123 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ShardedLsmTest {
+
+    private static final int KEYS = 3000; //more than one migration batch
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void keysSurviveAddingAndRemovingShards() throws IOException {
+        final Path rootDir = tempDir.resolve("sharded");
+        try (ShardedLsm lsm = new ShardedLsm(rootDir, 2, new LsmOptions())) {
+            for (int i = 0; i < KEYS; i++) {
+                lsm.put("key-" + i, "value-" + i);
+            }
+            lsm.put("expiring", "value", Duration.ofMillis(1));
+            lsm.delete("key-0");
+
+            lsm.addShard("shard-2");
+            assertAllKeys(lsm);
+            lsm.removeShard("shard-0");
+            assertAllKeys(lsm);
+            assertEquals(List.of("shard-1", "shard-2"), lsm.shardIds());
+        }
+        try (ShardedLsm lsm = new ShardedLsm(rootDir, 2, new LsmOptions())) {
+            assertEquals(List.of("shard-1", "shard-2"), lsm.shardIds());
+            assertAllKeys(lsm);
+        }
+    }
+
+    @Test
+    void keysSurviveMovingBackToAShardTheyLeft() throws IOException {
+        try (ShardedLsm lsm = new ShardedLsm(tempDir.resolve("sharded"), 2, new LsmOptions())) {
+            for (int i = 0; i < KEYS; i++) {
+                lsm.put("key-" + i, "value-" + i);
+            }
+            lsm.put("expiring", "value", Duration.ofMillis(1));
+            lsm.delete("key-0");
+
+            lsm.addShard("shard-2");
+            lsm.removeShard("shard-2"); //leaves a tombstone in shard-2 for every key it held
+            lsm.addShard("shard-2");
+            assertAllKeys(lsm);
+        }
+    }
+
+    @Test
+    void resumedMigrationKeepsWritesTheNewShardGotBeforeACrash() throws IOException {
+        final Path rootDir = tempDir.resolve("sharded");
+        try (ShardedLsm lsm = new ShardedLsm(rootDir, 2, new LsmOptions())) {
+            for (int i = 0; i < 200; i++) {
+                lsm.put("key-" + i, "old");
+            }
+        }
+        final ConsistentHash previousRing = new ConsistentHash();
+        List.of("shard-0", "shard-1").forEach(previousRing::addNode);
+        final ConsistentHash ring = new ConsistentHash();
+        List.of("shard-0", "shard-1", "shard-2").forEach(ring::addNode);
+        final List<String> moving = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            if (ring.getNode("key-" + i).equals("shard-2")) moving.add("key-" + i);
+        }
+        final String updated = moving.get(0);
+        final String deleted = moving.get(1);
+
+        //what addShard("shard-2") makes durable before moving keys, then a crash between the two writes of a put and a delete
+        final List<String> marks = new ArrayList<>();
+        for (String shardId : List.of("shard-0", "shard-1")) {
+            try (MiniLsm shard = new MiniLsm(rootDir.resolve(shardId))) {
+                marks.add(shardId + " " + shard.lastSequence());
+            }
+        }
+        marks.add("shard-2 0");
+        Manifest.write(rootDir, ShardedLsm.MIGRATION_MARKS_FILE, marks);
+        Manifest.write(rootDir, ShardedLsm.MIGRATING_FROM_FILE, List.of("shard-0", "shard-1"));
+        Manifest.write(rootDir, ShardedLsm.SHARDS_FILE, List.of("shard-0", "shard-1", "shard-2"));
+        try (MiniLsm newOwner = new MiniLsm(rootDir.resolve("shard-2"))) {
+            newOwner.put(updated, "new"); //a put writes the new shard first
+        }
+        try (MiniLsm oldOwner = new MiniLsm(rootDir.resolve(previousRing.getNode(deleted)))) {
+            oldOwner.delete(deleted); //a delete the old one
+        }
+
+        try (ShardedLsm lsm = new ShardedLsm(rootDir, 2, new LsmOptions())) {
+            assertEquals("new", lsm.get(updated));
+            assertNull(lsm.get(deleted));
+            for (String key : moving.subList(2, moving.size())) {
+                assertEquals("old", lsm.get(key));
+            }
+        }
+        try (ShardedLsm lsm = new ShardedLsm(rootDir, 2, new LsmOptions())) {
+            assertEquals("new", lsm.get(updated), "the stale copy is gone from the old shard too");
+            assertNull(lsm.get(deleted));
+        }
+    }
+
+    @Test
+    void rejectsANonPositiveShardCount() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardedLsm(tempDir.resolve("none"), 0, new LsmOptions()));
+    }
+
+    private static void assertAllKeys(final ShardedLsm lsm) throws IOException {
+        assertNull(lsm.get("key-0"));
+        for (int i = 1; i < KEYS; i++) {
+            assertEquals("value-" + i, lsm.get("key-" + i));
+        }
+        assertNull(lsm.get("expiring"), "expired keys are not brought back by a move");
+    }
+}
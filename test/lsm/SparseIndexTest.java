@@ -0,0 +1,77 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SparseIndexTest {
+
+    @Test
+    void floorFindsTheBlockAKeyFallsIn() {
+        final SparseIndex index = index("b", "d", "dd", "f");
+
+        assertEquals(-1, index.floor(bytes("a")), "before the first block");
+        assertEquals(-1, index.floor(new byte[0]));
+        assertEquals(0, index.floor(bytes("b")), "a block's first key");
+        assertEquals(0, index.floor(bytes("c")));
+        assertEquals(1, index.floor(bytes("d")));
+        assertEquals(1, index.floor(bytes("da")), "between a key and a longer one it prefixes");
+        assertEquals(2, index.floor(bytes("dd")));
+        assertEquals(2, index.floor(bytes("e")));
+        assertEquals(3, index.floor(bytes("f")));
+        assertEquals(3, index.floor(bytes("zzz")), "past the last block's first key");
+    }
+
+    @Test
+    void comparesBytesUnsigned() {
+        final TreeMap<byte[], Long> entries = new TreeMap<>(MiniLsm.KEY_ORDER);
+        entries.put(new byte[] {0x7F}, 0L);
+        entries.put(new byte[] {(byte) 0x80}, 100L);
+        entries.put(new byte[] {(byte) 0xFF}, 200L);
+        final SparseIndex index = SparseIndex.of(entries);
+
+        assertEquals(0, index.floor(new byte[] {0x7F, 0x7F}));
+        assertEquals(1, index.floor(new byte[] {(byte) 0x80}));
+        assertEquals(1, index.floor(new byte[] {(byte) 0xFE}));
+        assertEquals(2, index.floor(new byte[] {(byte) 0xFF, 0}));
+    }
+
+    @Test
+    void keepsEachEntrysKeyAndOffset() {
+        final SparseIndex index = index("apple", "b", "banana");
+
+        assertEquals(3, index.size());
+        assertArrayEquals(bytes("apple"), index.key(0));
+        assertArrayEquals(bytes("b"), index.key(1));
+        assertArrayEquals(bytes("banana"), index.key(2));
+        assertEquals(0, index.offset(0));
+        assertEquals(1000, index.offset(1));
+        assertEquals(2000, index.offset(2));
+    }
+
+    @Test
+    void singleEntry() {
+        final SparseIndex index = index("m");
+
+        assertEquals(-1, index.floor(bytes("a")));
+        assertEquals(0, index.floor(bytes("m")));
+        assertEquals(0, index.floor(bytes("z")));
+    }
+
+    // entry i at offset i * 1000
+    private static SparseIndex index(final String... keys) {
+        final TreeMap<byte[], Long> entries = new TreeMap<>(MiniLsm.KEY_ORDER);
+        for (int i = 0; i < keys.length; i++) {
+            entries.put(bytes(keys[i]), i * 1000L);
+        }
+        return SparseIndex.of(entries);
+    }
+
+    private static byte[] bytes(final String key) {
+        return key.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,74 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SsTableTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void reopenedTableHasEveryVersionAndItsNewestSequence() throws IOException {
+        final File file = tempDir.resolve(SsTable.fileName(0, 1, 1)).toFile();
+        try (SsTableWriter writer = new SsTableWriter(file, 10, null, IoThrottle.UNLIMITED)) {
+            for (int i = 0; i < 1000; i++) {
+                writer.add(key(i), Cell.of(("value-" + i).getBytes(UTF_8)).withSequence(2000 + i));
+            }
+            writer.add(key(1000), Cell.TOMBSTONE.withSequence(3001));
+            writer.add(key(1000), Cell.of("older".getBytes(UTF_8)).withSequence(5));
+            writer.finish(); //not released, dropping the last reference deletes the file
+        }
+
+        final SsTable sst = SsTable.open(file);
+        assertEquals(2, sst.formatVersion);
+        assertEquals(3001, sst.maxSequence);
+        for (int i = 0; i < 1000; i++) {
+            assertArrayEquals(("value-" + i).getBytes(UTF_8), sst.get(key(i), Long.MAX_VALUE, null).value());
+            assertNull(sst.get(key(i), 1999, null), "newer than the reader");
+        }
+        assertTrue(sst.get(key(1000), Long.MAX_VALUE, null).isTombstone());
+        assertArrayEquals("older".getBytes(UTF_8), sst.get(key(1000), 3000, null).value());
+    }
+
+    @Test
+    void findsTheKeysOnEitherSideOfEveryBlockBoundary() throws IOException {
+        final File file = tempDir.resolve(SsTable.fileName(0, 1, 1)).toFile();
+        try (SsTableWriter writer = new SsTableWriter(file, 10, null, IoThrottle.UNLIMITED)) {
+            for (int i = 0; i < 2000; i += 2) {
+                writer.add(key(i), Cell.of(("value-" + i).getBytes(UTF_8)).withSequence(1));
+            }
+            writer.finish();
+        }
+
+        final SsTable sst = SsTable.open(file);
+        assertTrue(sst.sparseIndex.size() > 2, "the table spans several blocks");
+        for (int entry = 0; entry < sst.sparseIndex.size(); entry++) {
+            final byte[] first = sst.sparseIndex.key(entry);
+            final int i = Integer.parseInt(new String(first, UTF_8).substring("key-".length()));
+            assertArrayEquals(("value-" + i).getBytes(UTF_8), sst.get(first, Long.MAX_VALUE, null).value());
+            assertNull(sst.get(key(i + 1), Long.MAX_VALUE, null), "between a block's first and second key");
+            if (i > 0) {
+                assertArrayEquals(("value-" + (i - 2)).getBytes(UTF_8), sst.get(key(i - 2), Long.MAX_VALUE, null).value(),
+                        "the previous block's last key");
+                assertNull(sst.get(key(i - 1), Long.MAX_VALUE, null), "between two blocks");
+            }
+        }
+        assertNull(sst.get("key".getBytes(UTF_8), Long.MAX_VALUE, null), "before the first key");
+        assertNull(sst.get(key(1999), Long.MAX_VALUE, null), "past the last key");
+    }
+
+    private static byte[] key(final int i) {
+        return String.format("key-%05d", i).getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,259 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void replaysEveryAcknowledgedRecord() throws IOException {
+        final File segment = writeSegment(3);
+
+        final Memtable memtable = new Memtable(segment);
+        assertEquals(3, WriteAheadLog.replay(segment, memtable));
+        for (int i = 1; i <= 3; i++) {
+            assertArrayEquals(("v" + i).getBytes(UTF_8), memtable.get(("k" + i).getBytes(UTF_8), Long.MAX_VALUE).value());
+        }
+    }
+
+    @Test
+    void dropsARecordTornByACrash() throws IOException {
+        final File segment = writeSegment(3);
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        final Memtable memtable = new Memtable(segment);
+        assertEquals(2, WriteAheadLog.replay(segment, memtable));
+        assertNull(memtable.get("k3".getBytes(UTF_8), Long.MAX_VALUE));
+    }
+
+    @Test
+    void stopsAtAZeroedTail() throws IOException {
+        final File segment = writeSegment(2);
+        Files.write(segment.toPath(), new byte[64], StandardOpenOption.APPEND);
+
+        final Memtable memtable = new Memtable(segment);
+        assertEquals(2, WriteAheadLog.replay(segment, memtable));
+        assertNull(memtable.get(new byte[0], Long.MAX_VALUE), "zeros are not an empty key");
+    }
+
+    @Test
+    void replaysBareRecordsOfASegmentWithoutHeader() throws IOException {
+        final File segment = tempDir.resolve("wal-0.log").toFile();
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(segment))) {
+            final ByteBuffer bb = ByteBuffer.allocate(MiniLsm.encodedLength("k".getBytes(UTF_8), Cell.of("v".getBytes(UTF_8))));
+            MiniLsm.encode(bb, "k".getBytes(UTF_8), Cell.of("v".getBytes(UTF_8)));
+            dos.write(bb.array());
+        }
+
+        final Memtable memtable = new Memtable(segment);
+        WriteAheadLog.replay(segment, memtable);
+        assertArrayEquals("v".getBytes(UTF_8), memtable.get("k".getBytes(UTF_8), Long.MAX_VALUE).value());
+    }
+
+    @Test
+    void deleteRemovesTheSegment() throws IOException {
+        final File segment = writeSegment(1);
+        WriteAheadLog.delete(segment);
+        assertFalse(segment.exists());
+    }
+
+    @Test
+    void cutsAFailedGroupSoLaterAcknowledgedWritesReplay() throws IOException {
+        final File segment = tempDir.resolve("wal-1.log").toFile();
+        final FaultyChannel[] channel = new FaultyChannel[1];
+        try (WriteAheadLog wal = new WriteAheadLog(segment, WriteAheadLog.Durability.SYNC_EVERY_COMMIT, 0, new LsmMetrics(),
+                path -> channel[0] = new FaultyChannel(WriteAheadLog.APPEND.open(path)))) {
+            append(wal, 1).join();
+            channel[0].failWrites = true;
+            assertThrows(CompletionException.class, () -> append(wal, 2).join());
+            channel[0].failWrites = false;
+            append(wal, 3).join();
+        }
+
+        final Memtable memtable = new Memtable(segment);
+        assertEquals(3, WriteAheadLog.replay(segment, memtable));
+        assertNull(memtable.get("k2".getBytes(UTF_8), Long.MAX_VALUE));
+        assertArrayEquals("v3".getBytes(UTF_8), memtable.get("k3".getBytes(UTF_8), Long.MAX_VALUE).value());
+    }
+
+    @Test
+    void failsForGoodWhenATornGroupCannotBeCut() throws IOException {
+        final File segment = tempDir.resolve("wal-1.log").toFile();
+        final FaultyChannel[] channel = new FaultyChannel[1];
+        final WriteAheadLog wal = new WriteAheadLog(segment, WriteAheadLog.Durability.SYNC_EVERY_COMMIT, 0, new LsmMetrics(),
+                path -> channel[0] = new FaultyChannel(WriteAheadLog.APPEND.open(path)));
+        channel[0].failWrites = true;
+        channel[0].failTruncate = true;
+        assertThrows(CompletionException.class, () -> append(wal, 1).join());
+        channel[0].failWrites = false;
+        channel[0].failTruncate = false;
+
+        assertThrows(CompletionException.class, () -> append(wal, 2).join(), "writes behind the torn bytes are refused");
+        assertThrows(IOException.class, wal::close);
+    }
+
+    @Test
+    void aFailedIntervalSyncFailsLaterAppendsAndClose() throws IOException {
+        final File segment = tempDir.resolve("wal-1.log").toFile();
+        final FaultyChannel[] channel = new FaultyChannel[1];
+        final WriteAheadLog wal = new WriteAheadLog(segment, WriteAheadLog.Durability.SYNC_ON_INTERVAL, 3_600_000, new LsmMetrics(),
+                path -> channel[0] = new FaultyChannel(WriteAheadLog.APPEND.open(path)));
+        append(wal, 1).join();
+        channel[0].failForce = true;
+        wal.syncOnInterval();
+        channel[0].failForce = false;
+        wal.syncOnInterval(); //succeeding now does not bring the dropped pages back
+
+        assertThrows(CompletionException.class, () -> append(wal, 2).join());
+        assertThrows(IOException.class, wal::close);
+    }
+
+    private static CompletableFuture<Void> append(final WriteAheadLog wal, final int i) {
+        return wal.append(WriteAheadLog.record(("k" + i).getBytes(UTF_8), Cell.of(("v" + i).getBytes(UTF_8)).withSequence(i)), () -> { });
+    }
+
+    private File writeSegment(final int records) throws IOException {
+        final File segment = tempDir.resolve("wal-1.log").toFile();
+        try (WriteAheadLog wal = new WriteAheadLog(segment, WriteAheadLog.Durability.SYNC_EVERY_COMMIT, 0, new LsmMetrics())) {
+            for (int i = 1; i <= records; i++) {
+                append(wal, i).join();
+            }
+        }
+        return segment;
+    }
+
+    // a segment channel whose writes stop halfway, truncates and fsyncs fail while the matching flag is set
+    private static final class FaultyChannel extends FileChannel {
+
+        private final FileChannel delegate;
+        volatile boolean failWrites;
+        volatile boolean failTruncate;
+        volatile boolean failForce;
+
+        FaultyChannel(final FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (!failWrites) return delegate.write(src);
+            final int half = src.remaining() / 2;
+            delegate.write(src.slice(src.position(), half));
+            src.position(src.position() + half);
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            if (failTruncate) throw new IOException("Input/output error");
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(final boolean metaData) throws IOException {
+            if (failForce) throw new IOException("Input/output error");
+            delegate.force(metaData);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(final ByteBuffer src, final long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
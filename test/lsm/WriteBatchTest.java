@@ -0,0 +1,102 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteBatchTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void frameReadsBackEveryRecordAtTheBatchSequence() {
+        final ByteBuffer frame = frame(batch(), 42);
+
+        final List<Map.Entry<byte[], Cell>> records = WriteBatch.readFrame(frame);
+        assertEquals(3, records.size());
+        assertArrayEquals(bytes("a"), records.get(0).getKey());
+        assertArrayEquals(bytes("1"), records.get(0).getValue().value());
+        assertTrue(records.get(1).getValue().isTombstone());
+        assertArrayEquals(bytes("c"), records.get(2).getKey());
+        records.forEach(record -> assertEquals(42, record.getValue().sequence()));
+        assertEquals(frame.limit(), frame.position(), "moved past the frame");
+    }
+
+    @Test
+    void aFrameCutShortOrCorruptedReadsAsNothing() {
+        final ByteBuffer frame = frame(batch(), 42);
+        for (int length = 0; length < frame.limit(); length++) {
+            assertNull(WriteBatch.readFrame(frame.duplicate().limit(length)), "cut at " + length);
+        }
+        for (int i = 16; i < frame.limit(); i++) { //every byte the checksum covers
+            final ByteBuffer corrupted = ByteBuffer.allocate(frame.limit()).put(frame.duplicate()).flip();
+            corrupted.put(i, (byte) (corrupted.get(i) ^ 1));
+            assertNull(WriteBatch.readFrame(corrupted), "flipped a bit of byte " + i);
+        }
+    }
+
+    @Test
+    void replayDropsATornBatchWhole() throws IOException {
+        final File segment = tempDir.resolve("wal-1.log").toFile();
+        try (WriteAheadLog wal = new WriteAheadLog(segment, WriteAheadLog.Durability.SYNC_EVERY_COMMIT, 0, new LsmMetrics())) {
+            wal.append(WriteAheadLog.record(bytes("before"), Cell.of(bytes("v")).withSequence(1)), () -> { }).join();
+            wal.append(batch().frame(2), () -> { }).join();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 3); //the crash hit the batch's last record
+        }
+
+        final Memtable memtable = new Memtable(segment);
+        assertEquals(1, WriteAheadLog.replay(segment, memtable));
+        assertArrayEquals(bytes("v"), memtable.get(bytes("before"), Long.MAX_VALUE).value());
+        for (String key : List.of("a", "b", "c")) {
+            assertNull(memtable.get(bytes(key), Long.MAX_VALUE), key + " is part of the torn batch");
+        }
+    }
+
+    @Test
+    void storeAppliesABatchAsOneWrite() throws IOException {
+        final Path dataDir = tempDir.resolve("store");
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            lsm.put("b", "old");
+            lsm.write(new WriteBatch().put("a", "1").put("a", "2").delete("b").put("c", "3"));
+            assertEquals("2", lsm.get("a"), "a key written twice keeps its last value");
+            assertNull(lsm.get("b"));
+            assertEquals("3", lsm.get("c"));
+        }
+        try (MiniLsm lsm = new MiniLsm(dataDir)) {
+            assertEquals("2", lsm.get("a"));
+            assertNull(lsm.get("b"));
+            assertEquals("3", lsm.get("c"));
+        }
+    }
+
+    private static WriteBatch batch() {
+        return new WriteBatch().put("a", "1").delete("b").put("c", "3");
+    }
+
+    private static ByteBuffer frame(final WriteBatch batch, final long sequence) {
+        final WriteAheadLog.Record record = batch.frame(sequence);
+        final ByteBuffer frame = ByteBuffer.allocate(record.length());
+        record.writeTo(frame);
+        return frame.flip();
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(UTF_8);
+    }
+}
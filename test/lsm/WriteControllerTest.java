@@ -0,0 +1,128 @@
+package lsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteControllerTest {
+
+    private final AtomicReference<MiniLsm.Memtables> memtables = new AtomicReference<>(memtables(0));
+    private final AtomicInteger level0Files = new AtomicInteger();
+    private final LsmMetrics metrics = new LsmMetrics();
+
+    @Test
+    void letsWritesThroughBelowTheSlowdownLimits() throws IOException {
+        final WriteController controller = controller(new LsmOptions());
+        level0Files.set(19);
+        memtables.set(memtables(3));
+
+        controller.awaitCapacity();
+
+        assertEquals(0, metrics.writeSlowdowns.sum());
+        assertEquals(0, metrics.writeStops.sum());
+    }
+
+    @Test
+    void delaysWritesBetweenTheSlowdownAndStopLimits() throws IOException {
+        final WriteController controller = controller(new LsmOptions());
+        level0Files.set(20);
+        controller.awaitCapacity();
+        memtables.set(memtables(4));
+        level0Files.set(0);
+        controller.awaitCapacity();
+
+        assertEquals(2, metrics.writeSlowdowns.sum(), "each limit delays on its own");
+        assertEquals(0, metrics.writeStops.sum());
+    }
+
+    @Test
+    void stopsWritesUntilAFlushOrCompactionMakesRoom() throws Exception {
+        final WriteController controller = controller(new LsmOptions().stopLevel0Files(4));
+        level0Files.set(4);
+
+        final CompletableFuture<Void> write = new CompletableFuture<>();
+        final Thread writer = new Thread(() -> {
+            try {
+                controller.awaitCapacity();
+                write.complete(null);
+            } catch (IOException e) {
+                write.completeExceptionally(e);
+            }
+        });
+        writer.start();
+        while (writer.getState() != Thread.State.TIMED_WAITING && !write.isDone()) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50); //the stall is timed from before the writer waits
+        assertFalse(write.isDone(), "stopped at the limit");
+
+        level0Files.set(3);
+        controller.onProgress();
+        write.get(5, TimeUnit.SECONDS);
+        assertEquals(1, metrics.writeStops.sum());
+        assertEquals(1, metrics.writeStallLatency.snapshot().count());
+        assertTrue(metrics.writeStallLatency.snapshot().max() >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void aStoppedWriteFailsAfterTheStallTimeout() {
+        final WriteController controller = controller(new LsmOptions().stopImmutableMemtables(2).writeStallTimeoutMillis(50));
+        memtables.set(memtables(2));
+
+        final long start = System.nanoTime();
+        final IOException e = assertThrows(IOException.class, controller::awaitCapacity);
+        assertTrue(e.getMessage().startsWith("Write stalled for 50 ms with 2 memtables"), e.getMessage());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void closeReleasesStoppedWrites() throws Exception {
+        final WriteController controller = controller(new LsmOptions().stopLevel0Files(1));
+        level0Files.set(1);
+
+        final CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+            try {
+                controller.awaitCapacity();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        controller.close();
+        write.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void aLimitOfZeroIsDisabled() throws IOException {
+        final WriteController controller = controller(new LsmOptions()
+                .slowdownImmutableMemtables(0).stopImmutableMemtables(0).slowdownLevel0Files(0).stopLevel0Files(0));
+        level0Files.set(1000);
+        memtables.set(memtables(100));
+
+        controller.awaitCapacity();
+
+        assertEquals(0, metrics.writeSlowdowns.sum());
+        assertEquals(0, metrics.writeStops.sum());
+    }
+
+    private WriteController controller(final LsmOptions options) {
+        return new WriteController(memtables, level0Files, metrics, options);
+    }
+
+    private static MiniLsm.Memtables memtables(final int immutables) {
+        final List<Memtable> waiting = Collections.nCopies(immutables, new Memtable(new File("wal-0.log")));
+        return new MiniLsm.Memtables(new Memtable(new File("wal-1.log")), waiting);
+    }
+}
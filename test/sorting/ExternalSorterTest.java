@@ -0,0 +1,283 @@
+package sorting;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExternalSorterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private int mergedRuns;
+
+    @Test
+    void parsesIntsAcrossTheWholeRange() throws IOException {
+        assertArrayEquals(new int[] {0, -7, 2147483647, -2147483648, 42}, parse("0\n-7\r\n2147483647\n-2147483648\n42"));
+        assertArrayEquals(new int[] {1, 2}, parse("1\n2\n"));
+    }
+
+    @Test
+    void rejectsIntsOutOfRange() {
+        assertRejected("1\n2147483648\n", "Int out of range at byte 2");
+        assertRejected("-2147483649\n", "Int out of range at byte 0");
+        assertRejected("99999999999999999999\n", "Int out of range at byte 0");
+    }
+
+    @Test
+    void rejectsLinesWithoutDigits() {
+        assertRejected("1\n-\n2\n", "Sign without digits at byte 2");
+        assertRejected("1\n\n2\n", "Empty line at byte 2");
+        assertRejected("1\r\n\r\n", "Empty line at byte 3");
+        assertRejected("1\n2-3\n", "Unexpected byte 45 at 3");
+    }
+
+    @Test
+    void runsReadBackInEveryFormat() throws IOException {
+        final int[] values = new int[3 * 8 * 1024 + 5]; //several blocks and a partial one
+        final Random random = new Random(42);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt();
+        }
+        values[0] = Integer.MIN_VALUE;
+        values[values.length - 1] = Integer.MAX_VALUE;
+        Arrays.sort(values, 1, values.length - 1);
+
+        for (ExternalSorter.RunFormat format : ExternalSorter.RunFormat.values()) {
+            final Path run = tempDir.resolve("run-" + format);
+            try (ExternalSorter.RunWriter writer = new ExternalSorter.RunWriter(run, format)) {
+                writer.write(values, values.length);
+            }
+            final int[] read = new int[values.length];
+            int count = 0;
+            try (ExternalSorter.RunReader reader = new ExternalSorter.RunReader(run, format)) {
+                while (reader.hasNext()) {
+                    read[count++] = reader.next();
+                }
+            }
+            assertEquals(values.length, count, format.name());
+            assertArrayEquals(values, read, format.name());
+        }
+    }
+
+    @Test
+    void emptyRunsReadBackEmpty() throws IOException {
+        for (ExternalSorter.RunFormat format : ExternalSorter.RunFormat.values()) {
+            final Path run = tempDir.resolve("empty-" + format);
+            new ExternalSorter.RunWriter(run, format).close();
+            try (ExternalSorter.RunReader reader = new ExternalSorter.RunReader(run, format)) {
+                assertFalse(reader.hasNext(), format.name());
+            }
+        }
+    }
+
+    @Test
+    void loserTreeMergesRunsOfUnevenLength() throws IOException {
+        final Random random = new Random(42);
+        final int[] lengths = {0, 1, 3 * 8 * 1024 + 5, 0, 17, 2, 8 * 1024}; //seven runs, some empty, some several blocks
+        final int[][] runs = new int[lengths.length][];
+        for (int r = 0; r < runs.length; r++) {
+            runs[r] = new int[lengths[r]];
+            for (int i = 0; i < lengths[r]; i++) {
+                runs[r][i] = random.nextInt(1000) - 500; //plenty of ints shared between runs
+            }
+            Arrays.sort(runs[r]);
+        }
+        runs[1][0] = Integer.MIN_VALUE;
+        runs[5][1] = Integer.MAX_VALUE;
+
+        assertArrayEquals(Arrays.stream(runs).flatMapToInt(Arrays::stream).sorted().toArray(), merge(runs));
+    }
+
+    @Test
+    void loserTreePassesASingleRunThrough() throws IOException {
+        final int[] run = {-3, -3, 0, 7, Integer.MAX_VALUE};
+        assertArrayEquals(run, merge(run));
+        assertArrayEquals(new int[0], merge(new int[0]));
+        assertArrayEquals(new int[0], merge());
+    }
+
+    @Test
+    void mergePlanFitsTheMemoryBudget() {
+        for (long memLimit : new long[] {1L << 20, 16L << 20, 64L << 20, 1L << 30}) {
+            final int maxFanIn = ExternalSorter.maxFanIn(memLimit);
+            assertTrue(maxFanIn >= 2 && maxFanIn <= 300, memLimit + ": " + maxFanIn);
+            if (maxFanIn > 2) assertTrue(ExternalSorter.mergeBytes(maxFanIn) <= memLimit, memLimit + ": " + maxFanIn);
+            if (maxFanIn < 300) assertTrue(ExternalSorter.mergeBytes(maxFanIn + 1) > memLimit, memLimit + ": " + maxFanIn);
+
+            for (int fanIn = 2; fanIn <= maxFanIn; fanIn++) {
+                final int lanes = ExternalSorter.mergeLanes(1000, fanIn, memLimit);
+                assertTrue(lanes >= 1 && lanes <= 4, memLimit + ": " + lanes);
+                assertTrue(lanes * ExternalSorter.mergeBytes(fanIn) <= memLimit, memLimit + ": " + lanes + " lanes of " + fanIn);
+            }
+        }
+        assertEquals(300, ExternalSorter.maxFanIn(1L << 30));
+        assertEquals(2, ExternalSorter.maxFanIn(0), "too little memory still merges two runs at a time");
+        assertEquals(1, ExternalSorter.mergeLanes(10, 2, 0));
+        assertEquals(3, ExternalSorter.mergeLanes(3, 2, 1L << 30), "no more lanes than merges");
+    }
+
+    @Test
+    void mergePassesAreFewestAndEvenlyWide() {
+        assertEquals(2, ExternalSorter.passes(1000, 300));
+        assertEquals(32, ExternalSorter.fanIn(1000, 2));
+        assertEquals(0, ExternalSorter.passes(1, 300));
+        assertEquals(1, ExternalSorter.passes(300, 300));
+        assertEquals(2, ExternalSorter.passes(301, 300));
+        for (int maxFanIn : new int[] {2, 3, 10, 300}) {
+            for (int runs = 2; runs <= 2000; runs++) {
+                final int passes = ExternalSorter.passes(runs, maxFanIn);
+                final int fanIn = ExternalSorter.fanIn(runs, passes);
+                assertTrue(Math.pow(maxFanIn, passes - 1) < runs, runs + " runs in " + passes + " passes");
+                assertTrue(fanIn <= maxFanIn && Math.pow(fanIn, passes) >= runs, runs + " runs at fan-in " + fanIn);
+            }
+        }
+    }
+
+    @Test
+    void batchPoolWaitsOnceEveryBatchIsInUse() throws Exception {
+        final ExternalSorter.BatchPool pool = new ExternalSorter.BatchPool(2, 4);
+        final int[] first = pool.take();
+        pool.take();
+        final CompletableFuture<int[]> third = CompletableFuture.supplyAsync(pool::take);
+        assertThrows(TimeoutException.class, () -> third.get(100, TimeUnit.MILLISECONDS));
+
+        pool.release(first);
+        assertSame(first, third.get(10, TimeUnit.SECONDS), "a released batch is reused rather than a new one allocated");
+    }
+
+    @Test
+    void replacementSelectionRunsAverageTwiceTheHeapOnRandomInput() throws IOException {
+        final int capacity = 10_000;
+        final int[] values = new Random(42).ints(1_000_000).toArray();
+
+        final List<int[]> runs = select(capacity, values);
+        final double averageLength = (double) values.length / runs.size();
+        assertTrue(averageLength > 1.8 * capacity && averageLength < 2.2 * capacity, runs.size() + " runs");
+        for (int r = 0; r < runs.size() - 2; r++) { //finish() cuts the last two short
+            assertTrue(runs.get(r).length > capacity, "run " + r + " outgrows the heap");
+        }
+        assertRunsHold(values, runs);
+    }
+
+    @Test
+    void replacementSelectionTurnsPartlySortedInputIntoOneRun() throws IOException {
+        final Random random = new Random(42);
+        final int[] values = new int[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 10 + random.nextInt(1000); //no int is more than a hundred places out of order
+        }
+
+        final List<int[]> runs = select(1000, values);
+        assertEquals(1, runs.size());
+        assertRunsHold(values, runs);
+
+        assertRunsHold(new int[] {3, -1, 2}, select(1000, 3, -1, 2)); //input ends before the heap fills
+        assertEquals(List.of(), select(1000));
+    }
+
+    @Test
+    void radixSortMatchesArraysSort() {
+        final Random random = new Random(42);
+        for (int size : new int[] {0, 1, 2, 255, 256, 257, 100_000}) {
+            final int[] values = random.ints(size + 10).toArray(); //the ints past size stay where they are
+            if (size > 4) {
+                values[0] = Integer.MIN_VALUE;
+                values[1] = Integer.MAX_VALUE;
+                values[2] = -1;
+                values[3] = 0;
+                values[4] = Integer.MIN_VALUE;
+            }
+            final int[] expected = values.clone();
+            Arrays.sort(expected, 0, size);
+
+            ExternalSorter.radixSort(values, size, new int[size]);
+            assertArrayEquals(expected, values, "size " + size);
+        }
+        final int[] bytes = random.ints(100_000, -128, 128).toArray(); //every int shares its upper three bytes
+        final int[] expected = bytes.clone();
+        Arrays.sort(expected);
+        ExternalSorter.radixSort(bytes, bytes.length, new int[bytes.length]);
+        assertArrayEquals(expected, bytes);
+    }
+
+    private List<int[]> select(final int capacity, final int... values) throws IOException {
+        final ExternalSorter.ReplacementSelector selector = new ExternalSorter.ReplacementSelector(capacity, tempDir.resolve("runs"));
+        for (int value : values) {
+            selector.add(value);
+        }
+        final List<int[]> runs = new ArrayList<>();
+        for (String run : selector.finish()) {
+            final List<Integer> read = new ArrayList<>();
+            try (ExternalSorter.RunReader reader = new ExternalSorter.RunReader(Path.of(run))) {
+                while (reader.hasNext()) {
+                    read.add(reader.next());
+                }
+            }
+            runs.add(read.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return runs;
+    }
+
+    private static void assertRunsHold(final int[] values, final List<int[]> runs) {
+        for (int[] run : runs) {
+            assertTrue(run.length > 0, "no empty runs");
+            final int[] sorted = run.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(sorted, run, "every run is sorted");
+        }
+        final int[] expected = values.clone();
+        Arrays.sort(expected);
+        assertArrayEquals(expected, runs.stream().flatMapToInt(Arrays::stream).sorted().toArray(), "every int in exactly one run");
+    }
+
+    private int[] merge(final int[]... runs) throws IOException {
+        final List<ExternalSorter.RunReader> readers = new ArrayList<>();
+        try {
+            for (int r = 0; r < runs.length; r++) {
+                final Path run = tempDir.resolve("merge-" + mergedRuns++);
+                try (ExternalSorter.RunWriter writer = new ExternalSorter.RunWriter(run)) {
+                    writer.write(runs[r], runs[r].length);
+                }
+                readers.add(new ExternalSorter.RunReader(run));
+            }
+            final ExternalSorter.LoserTree tree = new ExternalSorter.LoserTree(readers);
+            final List<Integer> merged = new ArrayList<>();
+            while (tree.hasNext()) {
+                merged.add(tree.next());
+            }
+            return merged.stream().mapToInt(Integer::intValue).toArray();
+        } finally {
+            readers.forEach(ExternalSorter.RunReader::closeQuietly);
+        }
+    }
+
+    private int[] parse(final String contents) throws IOException {
+        final Path file = Files.writeString(tempDir.resolve("input"), contents);
+        final List<ExternalSorter.Batch> batches = new ArrayList<>();
+        ExternalSorter.parseChunk(file, new ExternalSorter.Chunk(0, Files.size(file)), new ExternalSorter.BatchPool(4, 2), batches::add);
+        return batches.stream().flatMapToInt(batch -> Arrays.stream(batch.values(), 0, batch.size())).toArray();
+    }
+
+    private void assertRejected(final String contents, final String message) {
+        final NumberFormatException e = assertThrows(NumberFormatException.class, () -> parse(contents));
+        assertTrue(e.getMessage().startsWith(message), e.getMessage());
+    }
+}